@@ -0,0 +1,356 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.migration.benchmark;
+
+import static org.cubeengine.module.conomy.storage.TableAccount.TABLE_ACCOUNT;
+import static org.cubeengine.module.conomy.storage.TableBalance.TABLE_BALANCE;
+import static org.cubeengine.module.locker.storage.TableAccessList.TABLE_ACCESSLIST;
+import static org.cubeengine.module.locker.storage.TableLockLocations.TABLE_LOCK_LOCATIONS;
+import static org.cubeengine.module.locker.storage.TableLocks.TABLE_LOCKS;
+import static org.cubeengine.module.vote.storage.TableVote.TABLE_VOTE;
+
+import ch.vorburger.exec.ManagedProcessException;
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Random;
+
+/**
+ * Starts an embedded MariaDB and fills it with the old CubeEngine tables at a configurable scale.
+ * <p>The amount of rows in every table is derived from the amount of users:
+ * <ul>
+ *     <li>accounts: 1/2 of the users</li>
+ *     <li>votes: 1/3 of the users</li>
+ *     <li>locks: 2 per user, every 10th is an entity lock</li>
+ *     <li>locklocation: 1 per block lock, every 5th is a double chest with 2</li>
+ *     <li>lockaccesslist: 1 per 2 locks and 1 global entry per 10 users</li>
+ *     <li>roles: 1 per user, every 2nd user has a second one</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+public class LegacyDataset
+{
+    public static final String OLD_PREFIX = "cube_";
+    public static final String NEW_PREFIX = "ce_";
+    public static final String[] ROLES = {"guest", "member", "regular", "veteran", "builder", "moderator", "admin", "vip", "donator"};
+
+    private static final int WORLDS = 12;
+    private static final int BATCH = 1000;
+
+    @Param({"10000", "100000"})
+    public int users;
+
+    private DB db;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void start() throws ManagedProcessException, SQLException
+    {
+        DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+        config.setPort(0); // any free port
+        config.addArg("--local-infile=1");
+        this.db = DB.newEmbeddedDB(config.build());
+        this.db.start();
+        this.db.createDB("legacy");
+        this.url = config.getURL("legacy") + "?allowLocalInfile=true&rewriteBatchedStatements=true&useSSL=false";
+
+        try (Connection conn = getConnection())
+        {
+            createOldTables(conn);
+            createNewTables(conn);
+            generate(conn, new Random(42));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws ManagedProcessException
+    {
+        if (db != null)
+        {
+            db.stop();
+        }
+    }
+
+    public Connection getConnection() throws SQLException
+    {
+        return DriverManager.getConnection(url, "root", "");
+    }
+
+    /**
+     * Deletes all rows of the given new tables
+     */
+    public void clear(String... tables) throws SQLException
+    {
+        try (Connection conn = getConnection();
+             Statement stmt = conn.createStatement())
+        {
+            for (String table : tables)
+            {
+                stmt.execute("DELETE FROM " + NEW_PREFIX + table);
+            }
+        }
+    }
+
+    public int getLocks()
+    {
+        return users * 2;
+    }
+
+    private static void createOldTables(Connection conn) throws SQLException
+    {
+        try (Statement stmt = conn.createStatement())
+        {
+            stmt.execute("CREATE TABLE " + OLD_PREFIX + "user ("
+                    + "`key` BIGINT NOT NULL PRIMARY KEY, lastname VARCHAR(16) NOT NULL,"
+                    + "UUIDleast BIGINT NOT NULL, UUIDmost BIGINT NOT NULL, UNIQUE KEY (UUIDleast, UUIDmost)) ENGINE=InnoDB");
+            stmt.execute("CREATE TABLE " + OLD_PREFIX + "worlds ("
+                    + "`key` BIGINT NOT NULL PRIMARY KEY, worldName VARCHAR(64) NOT NULL,"
+                    + "UUIDleast BIGINT NOT NULL, UUIDmost BIGINT NOT NULL) ENGINE=InnoDB");
+            stmt.execute("CREATE TABLE " + OLD_PREFIX + "accounts ("
+                    + "`key` BIGINT NOT NULL PRIMARY KEY, user_id BIGINT NULL, name VARCHAR(64) NULL,"
+                    + "value BIGINT NOT NULL, mask TINYINT NOT NULL, INDEX (user_id)) ENGINE=InnoDB");
+            stmt.execute("CREATE TABLE " + OLD_PREFIX + "votes ("
+                    + "userid BIGINT NOT NULL PRIMARY KEY, lastvote TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,"
+                    + "voteamount INT NOT NULL) ENGINE=InnoDB");
+            stmt.execute("CREATE TABLE " + OLD_PREFIX + "locks ("
+                    + "id BIGINT NOT NULL PRIMARY KEY, owner_id BIGINT NOT NULL, flags SMALLINT NOT NULL,"
+                    + "type TINYINT NOT NULL, lock_type TINYINT NOT NULL, password VARBINARY(128) NULL,"
+                    + "entity_uid_least BIGINT NULL, entity_uid_most BIGINT NULL,"
+                    + "last_access TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, created TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,"
+                    + "INDEX (owner_id)) ENGINE=InnoDB");
+            stmt.execute("CREATE TABLE " + OLD_PREFIX + "locklocation ("
+                    + "id BIGINT NOT NULL PRIMARY KEY, world_id BIGINT NOT NULL, x INT NOT NULL, y INT NOT NULL, z INT NOT NULL,"
+                    + "chunkX INT NOT NULL, chunkZ INT NOT NULL, lock_id BIGINT NULL, INDEX (lock_id)) ENGINE=InnoDB");
+            stmt.execute("CREATE TABLE " + OLD_PREFIX + "lockaccesslist ("
+                    + "id BIGINT NOT NULL PRIMARY KEY, user_id BIGINT NOT NULL, lock_id BIGINT NULL, level SMALLINT NOT NULL,"
+                    + "owner_id BIGINT NULL, INDEX (lock_id), INDEX (owner_id)) ENGINE=InnoDB");
+            stmt.execute("CREATE TABLE " + OLD_PREFIX + "roles ("
+                    + "userId BIGINT NOT NULL, roleName VARCHAR(255) NOT NULL, PRIMARY KEY (userId, roleName)) ENGINE=InnoDB");
+        }
+    }
+
+    private static void createNewTables(Connection conn) throws SQLException
+    {
+        try (Statement stmt = conn.createStatement())
+        {
+            stmt.execute("CREATE TABLE " + NEW_PREFIX + TABLE_ACCOUNT.getName() + " ("
+                    + "id VARCHAR(64) NOT NULL PRIMARY KEY, name VARCHAR(64) NULL,"
+                    + "HIDDEN BOOLEAN NOT NULL, INVITE BOOLEAN NOT NULL, IS_UUID BOOLEAN NOT NULL) ENGINE=InnoDB");
+            stmt.execute("CREATE TABLE " + NEW_PREFIX + TABLE_BALANCE.getName() + " ("
+                    + "id VARCHAR(64) NOT NULL, currency VARCHAR(64) NOT NULL, context VARCHAR(64) NOT NULL,"
+                    + "balance BIGINT NOT NULL, PRIMARY KEY (id, currency, context)) ENGINE=InnoDB");
+            stmt.execute("CREATE TABLE " + NEW_PREFIX + TABLE_VOTE.getName() + " ("
+                    + "userid VARCHAR(64) NOT NULL PRIMARY KEY, lastvote TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,"
+                    + "voteamount INT NOT NULL) ENGINE=InnoDB");
+            stmt.execute("CREATE TABLE " + NEW_PREFIX + TABLE_LOCKS.getName() + " ("
+                    + "id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, owner_id VARCHAR(64) NOT NULL, flags SMALLINT NOT NULL,"
+                    + "type TINYINT NOT NULL, lock_type TINYINT NOT NULL, password VARBINARY(128) NULL, entity_uuid VARCHAR(64) NULL,"
+                    + "last_access TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, created TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP) ENGINE=InnoDB");
+            stmt.execute("CREATE TABLE " + NEW_PREFIX + TABLE_LOCK_LOCATIONS.getName() + " ("
+                    + "id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, world_id VARCHAR(64) NOT NULL,"
+                    + "x INT NOT NULL, y INT NOT NULL, z INT NOT NULL, chunkX INT NOT NULL, chunkZ INT NOT NULL,"
+                    + "lock_id BIGINT NULL, INDEX (lock_id)) ENGINE=InnoDB");
+            stmt.execute("CREATE TABLE " + NEW_PREFIX + TABLE_ACCESSLIST.getName() + " ("
+                    + "id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, user_id VARCHAR(64) NULL, lock_id BIGINT NULL,"
+                    + "level SMALLINT NOT NULL, owner_id VARCHAR(64) NULL, INDEX (lock_id)) ENGINE=InnoDB");
+        }
+    }
+
+    private void generate(Connection conn, Random random) throws SQLException
+    {
+        conn.setAutoCommit(false);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + OLD_PREFIX + "user VALUES (?, ?, ?, ?)"))
+        {
+            for (int i = 1; i <= users; i++)
+            {
+                stmt.setLong(1, i);
+                stmt.setString(2, "player" + i);
+                stmt.setLong(3, random.nextLong());
+                stmt.setLong(4, random.nextLong());
+                add(conn, stmt, i);
+            }
+            flush(conn, stmt);
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + OLD_PREFIX + "worlds VALUES (?, ?, ?, ?)"))
+        {
+            for (int i = 1; i <= WORLDS; i++)
+            {
+                stmt.setLong(1, i);
+                stmt.setString(2, "world" + i);
+                stmt.setLong(3, random.nextLong());
+                stmt.setLong(4, random.nextLong());
+                add(conn, stmt, i);
+            }
+            flush(conn, stmt);
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + OLD_PREFIX + "accounts VALUES (?, ?, ?, ?, ?)"))
+        {
+            for (int i = 1; i <= users / 2; i++)
+            {
+                stmt.setLong(1, i);
+                stmt.setLong(2, i * 2);
+                stmt.setString(3, null);
+                stmt.setLong(4, random.nextInt(1000000));
+                stmt.setInt(5, random.nextInt(4));
+                add(conn, stmt, i);
+            }
+            flush(conn, stmt);
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + OLD_PREFIX + "votes VALUES (?, ?, ?)"))
+        {
+            for (int i = 1; i <= users / 3; i++)
+            {
+                stmt.setLong(1, i * 3);
+                stmt.setTimestamp(2, now);
+                stmt.setInt(3, random.nextInt(500));
+                add(conn, stmt, i);
+            }
+            flush(conn, stmt);
+        }
+        try (PreparedStatement locks = conn.prepareStatement("INSERT INTO " + OLD_PREFIX + "locks VALUES (?, ?, ?, ?, ?, NULL, ?, ?, ?, ?)");
+             PreparedStatement locations = conn.prepareStatement("INSERT INTO " + OLD_PREFIX + "locklocation VALUES (?, ?, ?, ?, ?, ?, ?, ?)"))
+        {
+            long locationId = 0;
+            for (int i = 1; i <= getLocks(); i++)
+            {
+                boolean entity = i % 10 == 0;
+                locks.setLong(1, i);
+                locks.setLong(2, 1 + random.nextInt(users));
+                locks.setInt(3, random.nextInt(64));
+                locks.setInt(4, random.nextInt(4));
+                locks.setInt(5, 1 + random.nextInt(3));
+                if (entity)
+                {
+                    locks.setLong(6, random.nextLong());
+                    locks.setLong(7, random.nextLong());
+                }
+                else
+                {
+                    locks.setNull(6, Types.BIGINT);
+                    locks.setNull(7, Types.BIGINT);
+                }
+                locks.setTimestamp(8, now);
+                locks.setTimestamp(9, now);
+                add(conn, locks, i);
+
+                if (!entity)
+                {
+                    int x = random.nextInt(20000) - 10000;
+                    int y = random.nextInt(256);
+                    int z = random.nextInt(20000) - 10000;
+                    long world = 1 + random.nextInt(WORLDS);
+                    int blocks = i % 5 == 0 ? 2 : 1;
+                    for (int b = 0; b < blocks; b++)
+                    {
+                        locations.setLong(1, ++locationId);
+                        locations.setLong(2, world);
+                        locations.setInt(3, x + b);
+                        locations.setInt(4, y);
+                        locations.setInt(5, z);
+                        locations.setInt(6, (x + b) >> 4);
+                        locations.setInt(7, z >> 4);
+                        locations.setLong(8, i);
+                        add(conn, locations, locationId);
+                    }
+                }
+            }
+            flush(conn, locks);
+            flush(conn, locations);
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + OLD_PREFIX + "lockaccesslist VALUES (?, ?, ?, ?, ?)"))
+        {
+            long id = 0;
+            for (int i = 1; i <= getLocks() / 2; i++)
+            {
+                stmt.setLong(1, ++id);
+                stmt.setLong(2, 1 + random.nextInt(users));
+                stmt.setLong(3, i * 2 - 1);
+                stmt.setInt(4, 1 + random.nextInt(3));
+                stmt.setNull(5, Types.BIGINT);
+                add(conn, stmt, id);
+            }
+            for (int i = 1; i <= users / 10; i++)
+            {
+                stmt.setLong(1, ++id);
+                stmt.setLong(2, 1 + random.nextInt(users));
+                stmt.setNull(3, Types.BIGINT);
+                stmt.setInt(4, 1 + random.nextInt(3));
+                stmt.setLong(5, i * 10);
+                add(conn, stmt, id);
+            }
+            flush(conn, stmt);
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + OLD_PREFIX + "roles VALUES (?, ?)"))
+        {
+            long cnt = 0;
+            for (int i = 1; i <= users; i++)
+            {
+                int first = random.nextInt(ROLES.length);
+                stmt.setLong(1, i);
+                stmt.setString(2, ROLES[first]);
+                add(conn, stmt, ++cnt);
+                if (i % 2 == 0)
+                {
+                    stmt.setLong(1, i);
+                    stmt.setString(2, ROLES[(first + 1 + random.nextInt(ROLES.length - 1)) % ROLES.length]);
+                    add(conn, stmt, ++cnt);
+                }
+            }
+            flush(conn, stmt);
+        }
+        conn.setAutoCommit(true);
+
+        try (Statement stmt = conn.createStatement())
+        {
+            for (String table : new String[]{"user", "worlds", "accounts", "votes", "locks", "locklocation", "lockaccesslist", "roles"})
+            {
+                stmt.execute("ANALYZE TABLE " + OLD_PREFIX + table);
+            }
+        }
+    }
+
+    private static void add(Connection conn, PreparedStatement stmt, long cnt) throws SQLException
+    {
+        stmt.addBatch();
+        if (cnt % BATCH == 0)
+        {
+            flush(conn, stmt);
+        }
+    }
+
+    private static void flush(Connection conn, PreparedStatement stmt) throws SQLException
+    {
+        stmt.executeBatch();
+        conn.commit();
+    }
+}
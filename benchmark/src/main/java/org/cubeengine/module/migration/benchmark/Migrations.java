@@ -0,0 +1,104 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.migration.benchmark;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.cubeengine.libcube.ModuleManager;
+import org.cubeengine.libcube.service.i18n.I18n;
+import org.cubeengine.logscribe.Log;
+import org.cubeengine.module.conomy.Conomy;
+import org.cubeengine.module.dbmigration.MigrationConfig;
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.MigrationProgress;
+import org.cubeengine.module.dbmigration.MigrationReport;
+import org.cubeengine.module.dbmigration.MigrationStage;
+import org.cubeengine.module.dbmigration.stage.ConomyStage;
+import org.cubeengine.module.dbmigration.stage.LockAccessStage;
+import org.cubeengine.module.dbmigration.stage.LockLocationStage;
+import org.cubeengine.module.dbmigration.stage.LockStage;
+import org.cubeengine.module.dbmigration.stage.UUIDMappingStage;
+import org.cubeengine.module.dbmigration.stage.VoteStage;
+import org.cubeengine.module.locker.Locker;
+import org.cubeengine.module.vote.Vote;
+import org.spongepowered.api.command.CommandSource;
+
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Creates migration contexts and stages outside of a running server
+ */
+final class Migrations
+{
+    private Migrations()
+    {
+    }
+
+    /**
+     * @return a fresh context with an empty journal and all target modules present
+     */
+    static MigrationContext context(MigrationConfig config, Connection conn) throws SQLException
+    {
+        ModuleManager mm = mock(ModuleManager.class);
+        when(mm.getModule(Conomy.class)).thenReturn(mock(Conomy.class, RETURNS_DEEP_STUBS));
+        when(mm.getModule(Vote.class)).thenReturn(mock(Vote.class));
+        when(mm.getModule(Locker.class)).thenReturn(mock(Locker.class));
+        MigrationProgress progress = new MigrationProgress(mock(CommandSource.class), mock(I18n.class), Runnable::run,
+                                                             MigrationProgress.Mode.MIGRATE);
+        MigrationContext ctx = new MigrationContext(config, mm, mock(Log.class), progress, new MigrationReport(false),
+                                                    Paths.get("target", "benchmark"), LegacyDataset.NEW_PREFIX, false, false, false);
+        ctx.getJournal().load(conn, true);
+        ctx.getMarks().load(conn);
+        return ctx;
+    }
+
+    static MigrationConfig config(boolean chunkedCopy)
+    {
+        MigrationConfig config = new MigrationConfig();
+        config.prefix = LegacyDataset.OLD_PREFIX;
+        config.chunkedCopy = chunkedCopy;
+        return config;
+    }
+
+    static MigrationStage stage(String name)
+    {
+        switch (name)
+        {
+            case UUIDMappingStage.USERS:
+                return UUIDMappingStage.users();
+            case UUIDMappingStage.WORLDS:
+                return UUIDMappingStage.worlds();
+            case "conomy":
+                return new ConomyStage();
+            case "votes":
+                return new VoteStage();
+            case LockStage.LOCKS:
+                return new LockStage();
+            case LockStage.LOCATIONS:
+                return new LockLocationStage();
+            case LockStage.ACCESSLIST:
+                return new LockAccessStage();
+            default:
+                throw new IllegalArgumentException("Unknown stage " + name);
+        }
+    }
+}
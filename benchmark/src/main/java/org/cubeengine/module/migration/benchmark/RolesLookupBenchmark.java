@@ -0,0 +1,111 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.migration.benchmark;
+
+import org.cubeengine.module.rolesmigration.RoleLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The lookup of a single players roles done by RolesMigration on join in lazy mode
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RolesLookupBenchmark
+{
+    private static final int SAMPLE = 1000;
+
+    private final RoleLoader loader = new RoleLoader(LegacyDataset.OLD_PREFIX);
+    private Connection conn;
+    private UUID[] players;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup(LegacyDataset dataset) throws SQLException
+    {
+        this.conn = dataset.getConnection();
+        List<UUID> sample = new ArrayList<>();
+        try (Statement stmt = conn.createStatement())
+        {
+            try (ResultSet rs = stmt.executeQuery("SELECT UUIDmost, UUIDleast FROM " + LegacyDataset.OLD_PREFIX + "user "
+                                                      + "ORDER BY RAND(42) LIMIT " + SAMPLE))
+            {
+                while (rs.next())
+                {
+                    sample.add(new UUID(rs.getLong("UUIDmost"), rs.getLong("UUIDleast")));
+                }
+            }
+            UUID uuid = sample.get(0);
+            // Every lookup has to be an index probe or each join scans the whole user table
+            try (ResultSet rs = stmt.executeQuery("EXPLAIN SELECT r.roleName "
+                                                      + "FROM " + LegacyDataset.OLD_PREFIX + "user as u, "
+                                                      + LegacyDataset.OLD_PREFIX + "roles as r "
+                                                      + "WHERE u.`key` = r.userId "
+                                                      + "AND u.UUIDmost = " + uuid.getMostSignificantBits() + " "
+                                                      + "AND u.UUIDleast = " + uuid.getLeastSignificantBits()))
+            {
+                while (rs.next())
+                {
+                    if ("ALL".equals(rs.getString("type")))
+                    {
+                        throw new IllegalStateException("The role lookup scans the table " + rs.getString("table"));
+                    }
+                }
+            }
+        }
+        this.players = sample.toArray(new UUID[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws SQLException
+    {
+        if (conn != null)
+        {
+            conn.close();
+        }
+    }
+
+    @Benchmark
+    public List<String> lookup() throws SQLException
+    {
+        return loader.load(conn, players[next++ % players.length]);
+    }
+}
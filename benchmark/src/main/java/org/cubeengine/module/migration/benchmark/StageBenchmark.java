@@ -0,0 +1,102 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.migration.benchmark;
+
+import static org.cubeengine.module.conomy.storage.TableBalance.TABLE_BALANCE;
+
+import org.cubeengine.module.dbmigration.MigrationConfig;
+import org.cubeengine.module.dbmigration.stage.LockStage;
+import org.cubeengine.module.dbmigration.stage.UUIDMappingStage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every data copying migration stage on its own, with and without chunked copying
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StageBenchmark
+{
+    @Param({"conomy", "votes", LockStage.LOCKS, LockStage.LOCATIONS, LockStage.ACCESSLIST})
+    public String stage;
+
+    @Param({"false", "true"})
+    public boolean chunkedCopy;
+
+    private MigrationConfig config;
+
+    @Setup(Level.Trial)
+    public void mapUUIDs(LegacyDataset dataset) throws SQLException
+    {
+        config = Migrations.config(chunkedCopy);
+        try (Connection conn = dataset.getConnection())
+        {
+            UUIDMappingStage.users().migrate(Migrations.context(config, conn), conn);
+            UUIDMappingStage.worlds().migrate(Migrations.context(config, conn), conn);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare(LegacyDataset dataset) throws SQLException
+    {
+        switch (stage)
+        {
+            case "conomy":
+                // The stage only clears the accounts
+                dataset.clear(TABLE_BALANCE.getName());
+                break;
+            case LockStage.LOCATIONS:
+            case LockStage.ACCESSLIST:
+                // Clears all locker tables and fills the locks and lock id tables
+                try (Connection conn = dataset.getConnection())
+                {
+                    new LockStage().migrate(Migrations.context(config, conn), conn);
+                }
+                break;
+            default:
+                // The stage clears its own tables
+        }
+    }
+
+    @Benchmark
+    public void migrate(LegacyDataset dataset) throws SQLException
+    {
+        try (Connection conn = dataset.getConnection())
+        {
+            Migrations.stage(stage).migrate(Migrations.context(config, conn), conn);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.migration.benchmark;
+
+import org.cubeengine.module.dbmigration.MigrationConfig;
+import org.cubeengine.module.dbmigration.UUIDKeyBuffer;
+import org.cubeengine.module.dbmigration.stage.UUIDMappingStage;
+import org.cubeengine.module.dbmigration.writer.UUIDMapWriter;
+import org.cubeengine.module.dbmigration.writer.UUIDMapWriterType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the old user keys into the user UUID mapping table with every {@link UUIDMapWriter}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UUIDMappingBenchmark
+{
+    private static final String TABLE = LegacyDataset.OLD_PREFIX + "bench_uuids";
+
+    @Param({"BATCH", "MULTI_ROW", "LOAD_DATA"})
+    public UUIDMapWriterType writer;
+
+    @Param({"100", "1000"})
+    public int batchSize;
+
+    private MigrationConfig config;
+    private UUIDKeyBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setup(LegacyDataset dataset) throws SQLException
+    {
+        config = Migrations.config(false);
+        config.uuidWriter = writer;
+        config.uuidBatchSize = batchSize;
+
+        Random random = new Random(42);
+        buffer = new UUIDKeyBuffer(dataset.users);
+        for (int i = 1; i <= dataset.users; i++)
+        {
+            buffer.add(i, random.nextLong(), random.nextLong());
+        }
+        try (Connection conn = dataset.getConnection();
+             Statement stmt = conn.createStatement())
+        {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+                    + "ID BIGINT NOT NULL, UUID CHAR(36) CHARACTER SET ascii NOT NULL, PRIMARY KEY (ID)) ENGINE=InnoDB");
+        }
+    }
+
+    /**
+     * Empties the benchmark table before every write. The mapping stage recreates its own table.
+     */
+    @State(Scope.Benchmark)
+    public static class EmptyTable
+    {
+        @Setup(Level.Invocation)
+        public void truncate(LegacyDataset dataset) throws SQLException
+        {
+            try (Connection conn = dataset.getConnection();
+                 Statement stmt = conn.createStatement())
+            {
+                stmt.execute("TRUNCATE " + TABLE);
+            }
+        }
+    }
+
+    /**
+     * The whole user mapping stage: paging through the old user table and writing the mappings
+     */
+    @Benchmark
+    public void mappingStage(LegacyDataset dataset) throws SQLException
+    {
+        try (Connection conn = dataset.getConnection())
+        {
+            UUIDMappingStage.users().migrate(Migrations.context(config, conn), conn);
+        }
+    }
+
+    /**
+     * Only writing an already loaded buffer
+     */
+    @Benchmark
+    public void writeMappings(LegacyDataset dataset, EmptyTable table) throws SQLException
+    {
+        try (Connection conn = dataset.getConnection())
+        {
+            writer.create(batchSize).write(Migrations.context(config, conn), conn, TABLE, buffer);
+        }
+    }
+}
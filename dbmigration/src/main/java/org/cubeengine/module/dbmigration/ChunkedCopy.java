@@ -0,0 +1,141 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Runs an INSERT ... SELECT in key ranges of the source table committing after every chunk.
+ * <p>The ranges are found by keyset pagination on the source tables key
+ * so every chunk contains at most chunkSize source rows no matter how sparse the keys are.
+ */
+public class ChunkedCopy
+{
+    private final MigrationContext ctx;
+    private final String stage;
+    private final String step;
+    private final String sourceTable;
+    private final String alias;
+    private final String key;
+
+    /**
+     * @param stage the stage running the copy
+     * @param step the name of the copy step within the stage
+     * @param sourceTable the full name of the source table
+     * @param alias the alias of the source table in the insert statement
+     * @param key the numeric key column of the source table
+     */
+    public ChunkedCopy(MigrationContext ctx, String stage, String step, String sourceTable, String alias, String key)
+    {
+        this.ctx = ctx;
+        this.stage = stage;
+        this.step = step;
+        this.sourceTable = sourceTable;
+        this.alias = alias;
+        this.key = key;
+    }
+
+    /**
+     * Copies all rows after the last checkpoint in the journal.
+     * Every chunk is committed together with its checkpoint.
+     *
+     * @param insertSql the INSERT ... SELECT statement ending with a WHERE clause
+     * @return the amount of inserted rows
+     */
+    public long copy(Connection conn, String insertSql) throws SQLException
+    {
+        return copy(conn, insertSql, "", null, null);
+    }
+
+    /**
+     * @param upsert the ON DUPLICATE KEY UPDATE clause appended after the chunk condition or an empty String
+     * @param newMark the high-water mark committed with the last chunk or null
+     * @param startKey the key to start after unless resumed or null to start at the first key
+     * @see #copy(Connection, String)
+     */
+    public long copy(Connection conn, String insertSql, String upsert, String newMark, Long startKey) throws SQLException
+    {
+        int chunkSize = Math.max(1, ctx.getConfig().chunkSize);
+        MigrationProgress progress = ctx.getProgress();
+        MigrationJournal journal = ctx.getJournal();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        long total = 0;
+        try (PreparedStatement nextKey = progress.track(conn.prepareStatement(
+                "SELECT MAX(" + key + ") FROM (SELECT " + key + " FROM " + sourceTable
+                    + " WHERE " + key + " > ? ORDER BY " + key + " LIMIT " + chunkSize + ") as chunk"));
+             PreparedStatement insert = progress.track(conn.prepareStatement(
+                insertSql + " AND " + alias + "." + key + " > ? AND " + alias + "." + key + " <= ?" + upsert)))
+        {
+            Long checkpoint = journal.getCheckpoint(stage, step);
+            long from = checkpoint != null ? checkpoint : startKey != null ? startKey : Long.MIN_VALUE;
+            if (checkpoint != null)
+            {
+                ctx.getLogger().info("{}: resuming {} after {}", stage, step, checkpoint);
+            }
+            while (true)
+            {
+                progress.checkCancelled();
+                nextKey.setLong(1, from);
+                long to;
+                try (ResultSet rs = nextKey.executeQuery())
+                {
+                    if (!rs.next())
+                    {
+                        break;
+                    }
+                    to = rs.getLong(1);
+                    if (rs.wasNull())
+                    {
+                        break; // no rows left
+                    }
+                }
+
+                insert.setLong(1, from);
+                insert.setLong(2, to);
+                int cnt = insert.executeUpdate();
+                journal.checkpoint(conn, stage, step, to);
+                conn.commit();
+
+                total += cnt;
+                progress.addRows(cnt);
+                ctx.getLogger().debug("{}: copied {} rows up to {}", sourceTable, cnt, to);
+                from = to;
+            }
+            if (newMark != null)
+            {
+                ctx.getMarks().done(conn, stage, step, newMark);
+            }
+            journal.stepDone(conn, stage, step);
+            conn.commit();
+        }
+        catch (SQLException | RuntimeException e)
+        {
+            conn.rollback();
+            throw e;
+        }
+        finally
+        {
+            conn.setAutoCommit(autoCommit);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.regex.Pattern;
+
+/**
+ * Describes how a copy step finds the rows added or changed since the last migration.
+ * <p>Steps with a mark column are bounded by the highest value read when the migration started,
+ * so rows added while copying are left for the next delta migration.
+ * A full migration copies everything and only records the mark.
+ */
+public class Delta
+{
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+");
+
+    private final String table;
+    private final String column;
+    private final String condition;
+    private final boolean inclusive;
+    private final String upsert;
+    private final String orCondition;
+    private final String andCondition;
+
+    private Delta(String table, String column, String condition, boolean inclusive, String upsert,
+                  String orCondition, String andCondition)
+    {
+        this.table = table;
+        this.column = column;
+        this.condition = condition;
+        this.inclusive = inclusive;
+        this.upsert = upsert;
+        this.orCondition = orCondition;
+        this.andCondition = andCondition;
+    }
+
+    /**
+     * Copies rows with an increasing key above the last mark. Old rows are never copied again.
+     *
+     * @param table the source table without prefix
+     * @param column the increasing column of the source table including its alias
+     */
+    public static Delta newRows(String table, String column)
+    {
+        return new Delta(table, column, null, false, "", null, null);
+    }
+
+    /**
+     * Copies rows with an increasing key above the last mark.
+     * The upsert skips the rows a full migration copied after reading its mark.
+     *
+     * @param upsert the ON DUPLICATE KEY UPDATE clause
+     * @see #newRows(String, String)
+     */
+    public static Delta newRows(String table, String column, String upsert)
+    {
+        return new Delta(table, column, null, false, " " + upsert, null, null);
+    }
+
+    /**
+     * Upserts rows with a change timestamp at or after the last mark
+     *
+     * @param table the source table without prefix
+     * @param column the timestamp column of the source table including its alias
+     * @param upsert the ON DUPLICATE KEY UPDATE clause
+     */
+    public static Delta changedSince(String table, String column, String upsert)
+    {
+        return new Delta(table, column, null, true, " " + upsert, null, null);
+    }
+
+    /**
+     * Upserts rows matching a condition comparing them with the target for tables without a usable mark
+     *
+     * @param condition the condition selecting new or changed rows
+     * @param upsert the ON DUPLICATE KEY UPDATE clause
+     */
+    public static Delta changed(String condition, String upsert)
+    {
+        return new Delta(null, null, condition, false, " " + upsert, null, null);
+    }
+
+    /**
+     * @param condition selects rows to copy in a delta migration regardless of the mark
+     */
+    public Delta or(String condition)
+    {
+        return new Delta(table, column, this.condition, inclusive, upsert, condition, andCondition);
+    }
+
+    /**
+     * @param condition has to be met by every row copied in a delta migration
+     */
+    public Delta and(String condition)
+    {
+        return new Delta(table, column, this.condition, inclusive, upsert, orCondition, condition);
+    }
+
+    /**
+     * @return the source table without prefix or null if there is no mark column
+     */
+    public String getTable()
+    {
+        return table;
+    }
+
+    /**
+     * @return the alias of the source table used by the mark column
+     */
+    public String getAlias()
+    {
+        return column.substring(0, column.indexOf('.'));
+    }
+
+    /**
+     * @return the column holding the mark or null if there is none
+     */
+    public String getColumn()
+    {
+        return column;
+    }
+
+    /**
+     * @return whether the mark column is the given key, so a delta copy can start after the last mark
+     */
+    public boolean isKey(String alias, String key)
+    {
+        return column != null && !inclusive && column.equals(alias + "." + key);
+    }
+
+    /**
+     * @return the clause appended to the insert statement in a delta migration
+     */
+    public String getUpsert()
+    {
+        return upsert;
+    }
+
+    /**
+     * @param prefix the prefix of the source table
+     * @return the highest value of the mark column or {@link DeltaMarks#NONE} if the table is empty
+     */
+    public String readMark(Statement stmt, String prefix) throws SQLException
+    {
+        try (ResultSet rs = stmt.executeQuery("SELECT MAX(" + column + ") FROM " + prefix + table + " as " + getAlias()))
+        {
+            String mark = rs.next() ? rs.getString(1) : null;
+            return mark == null ? DeltaMarks.NONE : mark;
+        }
+    }
+
+    /**
+     * @param lastMark the mark of the last migration or null to copy everything up to the new mark
+     * @param newMark the mark read when the migration started
+     * @param delta whether this is a delta migration
+     * @return the condition to append to the insert statement or null
+     */
+    public String condition(String lastMark, String newMark, boolean delta)
+    {
+        if (!delta)
+        {
+            return null;
+        }
+        String changed = condition;
+        if (column != null)
+        {
+            changed = DeltaMarks.NONE.equals(newMark) ? "1 = 0" : column + " <= " + literal(newMark);
+            if (lastMark != null)
+            {
+                changed = since(lastMark) + " AND " + changed;
+            }
+        }
+        if (orCondition != null)
+        {
+            changed = "(" + changed + " OR " + orCondition + ")";
+        }
+        if (andCondition != null)
+        {
+            changed += " AND " + andCondition;
+        }
+        return changed;
+    }
+
+    /**
+     * @return the condition selecting the rows added or changed since the mark
+     */
+    public String since(String mark)
+    {
+        return column + (inclusive ? " >= " : " > ") + literal(mark);
+    }
+
+    private static String literal(String mark)
+    {
+        if (NUMBER.matcher(mark).matches())
+        {
+            return mark;
+        }
+        return "'" + mark.replace("'", "''") + "'";
+    }
+}
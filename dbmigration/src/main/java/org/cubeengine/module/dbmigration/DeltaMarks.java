@@ -0,0 +1,151 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persists the high-water mark of every copy step so a delta migration only copies rows added or changed since.
+ * <p>Unlike the {@link MigrationJournal} the marks are kept after a migration is done.
+ * Marks are written on the connection doing the work so they are committed together with the copied rows.
+ */
+public class DeltaMarks
+{
+    /**
+     * Appended to the step of the mark a chunked copy is working towards
+     */
+    public static final String PENDING = "#pending";
+    /**
+     * The pending mark of an empty table. It is never recorded as a mark
+     */
+    public static final String NONE = "";
+
+    private final String table;
+    private final Map<String, String> marks = new ConcurrentHashMap<>();
+
+    public DeltaMarks(String table)
+    {
+        this.table = table;
+    }
+
+    /**
+     * Creates the table if needed and loads all marks
+     */
+    public void load(Connection conn) throws SQLException
+    {
+        try (Statement stmt = conn.createStatement())
+        {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + table + " ("
+                    + "stage VARCHAR(64) NOT NULL,"
+                    + "step VARCHAR(64) NOT NULL,"
+                    + "mark VARCHAR(64) NOT NULL,"
+                    + "updated TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,"
+                    + "PRIMARY KEY (stage, step))");
+            try (ResultSet rs = stmt.executeQuery("SELECT stage, step, mark FROM " + table))
+            {
+                while (rs.next())
+                {
+                    marks.put(key(rs.getString("stage"), rs.getString("step")), rs.getString("mark"));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the mark of the last migration or null if the step was never copied
+     */
+    public String get(String stage, String step)
+    {
+        return marks.get(key(stage, step));
+    }
+
+    public int size()
+    {
+        return marks.size();
+    }
+
+    public void set(Connection conn, String stage, String step, String mark) throws SQLException
+    {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO " + table + " (stage, step, mark) VALUES (?, ?, ?) "
+                    + "ON DUPLICATE KEY UPDATE mark = VALUES(mark)"))
+        {
+            stmt.setString(1, stage);
+            stmt.setString(2, step);
+            stmt.setString(3, mark);
+            stmt.executeUpdate();
+        }
+        marks.put(key(stage, step), mark);
+    }
+
+    public void remove(Connection conn, String stage, String step) throws SQLException
+    {
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM " + table + " WHERE stage = ? AND step = ?"))
+        {
+            stmt.setString(1, stage);
+            stmt.setString(2, step);
+            stmt.executeUpdate();
+        }
+        marks.remove(key(stage, step));
+    }
+
+    /**
+     * Records the mark of a finished step and removes its pending mark
+     *
+     * @param newMark the pending mark of the step
+     */
+    public void done(Connection conn, String stage, String step, String newMark) throws SQLException
+    {
+        if (!NONE.equals(newMark))
+        {
+            this.set(conn, stage, step, newMark);
+        }
+        this.remove(conn, stage, step + PENDING);
+    }
+
+    /**
+     * @return whether an interrupted migration left pending marks
+     */
+    public boolean hasPending()
+    {
+        return marks.keySet().stream().anyMatch(k -> k.endsWith(PENDING));
+    }
+
+    /**
+     * Removes the pending marks left by steps that were not run
+     */
+    public void clearPending(Connection conn) throws SQLException
+    {
+        try (Statement stmt = conn.createStatement())
+        {
+            stmt.executeUpdate("DELETE FROM " + table + " WHERE step LIKE '%" + PENDING + "'");
+        }
+        marks.keySet().removeIf(k -> k.endsWith(PENDING));
+    }
+
+    private static String key(String stage, String step)
+    {
+        return stage + "/" + step;
+    }
+}
@@ -17,6 +17,7 @@
  */
 package org.cubeengine.module.dbmigration;
 
+import org.cubeengine.module.dbmigration.writer.UUIDMapWriterType;
 import org.cubeengine.reflect.annotations.Comment;
 import org.cubeengine.reflect.codec.yaml.ReflectedYaml;
 
@@ -25,4 +26,53 @@ public class MigrationConfig extends ReflectedYaml
     @Comment("The table prefix used for all old CubeEngine tables")
     public String prefix = "cube_";
 
+    @Comment("The amount of migration stages allowed to run at the same time.\n"
+        + "Each running stage uses its own database connection")
+    public int parallelStages = 4;
+
+    @Comment("Copies the large tables in chunks of chunk-size rows committing after each chunk.\n"
+        + "Keeps transactions and lock times small on big tables")
+    public boolean chunkedCopy = false;
+
+    @Comment("The amount of source rows copied per chunk when chunked-copy is enabled")
+    public int chunkSize = 10000;
+
+    @Comment("The rows per second a dry run assumes for stages missing in the last migration report")
+    public int estimatedRowsPerSecond = 5000;
+
+    @Comment("How the UUID mapping tables are filled: BATCH, MULTI_ROW or LOAD_DATA\n"
+        + "LOAD_DATA needs local-infile enabled on the server and driver. It falls back to MULTI_ROW if the driver does not support it")
+    public UUIDMapWriterType uuidWriter = UUIDMapWriterType.MULTI_ROW;
+
+    @Comment("The amount of rows written per batch into the UUID mapping tables. Every batch is committed on its own")
+    public int uuidBatchSize = 1000;
+
+    @Comment("The JDBC url of the database holding the old tables if it is not the CubeEngine database\n"
+        + "e.g. jdbc:mysql://old-host:3306/minecraft\n"
+        + "The old tables are then copied into staging tables in the CubeEngine database first.\n"
+        + "Staging tables of tables with high-water marks are kept so a delta migration only copies their changes")
+    public String sourceUrl = "";
+
+    @Comment("The user for the source-url")
+    public String sourceUser = "";
+
+    @Comment("The password for the source-url")
+    public String sourcePassword = "";
+
+    @Comment("The amount of rows per batch when copying from the source database")
+    public int pipelineBatchSize = 1000;
+
+    @Comment("The maximum amount of batches read from the source database but not yet written")
+    public int pipelineQueueSize = 8;
+
+    @Comment("The amount of threads writing the copied batches. Each writer uses its own database connection")
+    public int pipelineWriters = 2;
+
+    @Comment("The maximum amount of connections to the CubeEngine database the migration uses at the same time.\n"
+        + "Keep it at or below the size of the connection pool. Limits the pipeline-writers of parallel stages")
+    public int maxConnections = 10;
+
+    @Comment("The span of old keys compared at once by verifyMigration")
+    public int verifyRangeSize = 10000;
+
 }
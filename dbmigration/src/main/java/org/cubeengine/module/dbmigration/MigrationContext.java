@@ -0,0 +1,169 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import org.cubeengine.libcube.ModuleManager;
+import org.cubeengine.logscribe.Log;
+
+import java.nio.file.Path;
+
+/**
+ * Shared state of a single migration run that is passed to every {@link MigrationStage}
+ */
+public class MigrationContext
+{
+    /**
+     * The prefix of the old tables copied from a separate source database appended to the old prefix
+     */
+    public static final String STAGING_PREFIX = "staging_";
+
+    private final MigrationConfig config;
+    private final ModuleManager mm;
+    private final Log logger;
+    private final MigrationProgress progress;
+    private final String mainPrefix;
+    private final boolean keepOld;
+    private final MigrationJournal journal;
+    private final MigrationReport report;
+    private final Path folder;
+    private final boolean separateSource;
+    private final boolean delta;
+    private final DeltaMarks marks;
+
+    public MigrationContext(MigrationConfig config, ModuleManager mm, Log logger, MigrationProgress progress, MigrationReport report,
+                            Path folder, String mainPrefix, boolean keepOld, boolean separateSource, boolean delta)
+    {
+        this.delta = delta;
+        this.marks = new DeltaMarks(config.prefix + "migration_marks");
+        this.separateSource = separateSource;
+        this.folder = folder;
+        this.report = report;
+        this.journal = new MigrationJournal(config.prefix + "migration_journal");
+        this.config = config;
+        this.mm = mm;
+        this.logger = logger;
+        this.progress = progress;
+        this.mainPrefix = mainPrefix;
+        this.keepOld = keepOld;
+    }
+
+    public MigrationConfig getConfig()
+    {
+        return config;
+    }
+
+    public ModuleManager getModuleManager()
+    {
+        return mm;
+    }
+
+    public Log getLogger()
+    {
+        return logger;
+    }
+
+    public MigrationProgress getProgress()
+    {
+        return progress;
+    }
+
+    /**
+     * @return the table prefix of the new tables
+     */
+    public String getMainPrefix()
+    {
+        return mainPrefix;
+    }
+
+    /**
+     * @return the table prefix of the old tables in the target database.
+     *         These are staging tables if the old tables are in a separate database.
+     */
+    public String getOldPrefix()
+    {
+        return separateSource ? config.prefix + STAGING_PREFIX : config.prefix;
+    }
+
+    /**
+     * @return whether the old tables were copied from a separate database
+     */
+    public boolean isSeparateSource()
+    {
+        return separateSource;
+    }
+
+    public boolean isKeepOld()
+    {
+        return keepOld;
+    }
+
+    public MigrationJournal getJournal()
+    {
+        return journal;
+    }
+
+    /**
+     * @return whether only rows added or changed since the last migration are copied
+     */
+    public boolean isDelta()
+    {
+        return delta;
+    }
+
+    public DeltaMarks getMarks()
+    {
+        return marks;
+    }
+
+    public MigrationReport getReport()
+    {
+        return report;
+    }
+
+    /**
+     * @return the module folder for migrated data not stored in the database
+     */
+    public Path getFolder()
+    {
+        return folder;
+    }
+
+    /**
+     * @return the helper table mapping old user keys to UUIDs
+     */
+    public String getUserUUIDTable()
+    {
+        return config.prefix + "user_uuids";
+    }
+
+    /**
+     * @return the helper table mapping old world keys to UUIDs
+     */
+    public String getWorldUUIDTable()
+    {
+        return config.prefix + "world_uuids";
+    }
+
+    /**
+     * @return the helper table mapping old lock ids to the ids of the new locks
+     */
+    public String getLockIdTable()
+    {
+        return config.prefix + "lock_ids";
+    }
+}
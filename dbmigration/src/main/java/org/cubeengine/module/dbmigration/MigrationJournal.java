@@ -0,0 +1,194 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persists which stages, steps and chunks of a migration are done so a failed migration can be resumed.
+ * <p>Checkpoints are written on the connection doing the work so they are committed together with the copied rows.
+ */
+public class MigrationJournal
+{
+    private static final String STAGE = "";
+
+    private final String table;
+    private final Set<String> done = ConcurrentHashMap.newKeySet();
+    private final Set<String> started = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> checkpoints = new ConcurrentHashMap<>();
+
+    public MigrationJournal(String table)
+    {
+        this.table = table;
+    }
+
+    /**
+     * Creates the journal table if needed and loads the journal of the last unfinished migration
+     *
+     * @param restart whether to discard the journal and start from scratch
+     */
+    public void load(Connection conn, boolean restart) throws SQLException
+    {
+        try (Statement stmt = conn.createStatement())
+        {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + table + " ("
+                    + "stage VARCHAR(64) NOT NULL,"
+                    + "step VARCHAR(64) NOT NULL,"
+                    + "last_key BIGINT NULL,"
+                    + "done BOOLEAN NOT NULL,"
+                    + "updated TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,"
+                    + "PRIMARY KEY (stage, step))");
+            if (restart)
+            {
+                stmt.execute("DELETE FROM " + table);
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT stage, step, last_key, done FROM " + table))
+            {
+                while (rs.next())
+                {
+                    String stage = rs.getString("stage");
+                    String step = rs.getString("step");
+                    started.add(stage);
+                    if (rs.getBoolean("done"))
+                    {
+                        done.add(key(stage, step));
+                    }
+                    long lastKey = rs.getLong("last_key");
+                    if (!rs.wasNull())
+                    {
+                        checkpoints.put(key(stage, step), lastKey);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the journal after the migration is done
+     */
+    public void clear(Connection conn) throws SQLException
+    {
+        try (Statement stmt = conn.createStatement())
+        {
+            stmt.execute("DELETE FROM " + table);
+        }
+        done.clear();
+        started.clear();
+        checkpoints.clear();
+    }
+
+    /**
+     * @return whether anything was recorded for given stage
+     */
+    public boolean isStarted(String stage)
+    {
+        return started.contains(stage);
+    }
+
+    public boolean isStageDone(String stage)
+    {
+        return done.contains(key(stage, STAGE));
+    }
+
+    public boolean isStepDone(String stage, String step)
+    {
+        return done.contains(key(stage, step));
+    }
+
+    /**
+     * @return the last copied key of given step or null if no chunk was copied yet
+     */
+    public Long getCheckpoint(String stage, String step)
+    {
+        return checkpoints.get(key(stage, step));
+    }
+
+    /**
+     * @return the amount of stages already done
+     */
+    public int getStagesDone()
+    {
+        int cnt = 0;
+        for (String key : done)
+        {
+            if (key.endsWith("/" + STAGE))
+            {
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    public void stageDone(Connection conn, String stage) throws SQLException
+    {
+        write(conn, stage, STAGE, null, true);
+    }
+
+    public void stepDone(Connection conn, String stage, String step) throws SQLException
+    {
+        write(conn, stage, step, getCheckpoint(stage, step), true);
+    }
+
+    public void checkpoint(Connection conn, String stage, String step, long lastKey) throws SQLException
+    {
+        write(conn, stage, step, lastKey, false);
+    }
+
+    private void write(Connection conn, String stage, String step, Long lastKey, boolean isDone) throws SQLException
+    {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO " + table + " (stage, step, last_key, done) VALUES (?, ?, ?, ?) "
+                    + "ON DUPLICATE KEY UPDATE last_key = VALUES(last_key), done = VALUES(done)"))
+        {
+            stmt.setString(1, stage);
+            stmt.setString(2, step);
+            if (lastKey == null)
+            {
+                stmt.setNull(3, Types.BIGINT);
+            }
+            else
+            {
+                stmt.setLong(3, lastKey);
+            }
+            stmt.setBoolean(4, isDone);
+            stmt.executeUpdate();
+        }
+        started.add(stage);
+        if (lastKey != null)
+        {
+            checkpoints.put(key(stage, step), lastKey);
+        }
+        if (isDone)
+        {
+            done.add(key(stage, step));
+        }
+    }
+
+    private static String key(String stage, String step)
+    {
+        return stage + "/" + step;
+    }
+}
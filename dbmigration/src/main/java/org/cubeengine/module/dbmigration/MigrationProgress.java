@@ -0,0 +1,283 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.NEGATIVE;
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.NEUTRAL;
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.POSITIVE;
+
+import org.cubeengine.libcube.service.i18n.I18n;
+import org.cubeengine.libcube.service.i18n.formatter.MessageType;
+import org.spongepowered.api.command.CommandSource;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the state of a running migration and reports it back to the CommandSource that started it.
+ * <p>All methods may be called from any thread. Messages are always sent on the server thread.
+ */
+public class MigrationProgress
+{
+    private final CommandSource source;
+    private final I18n i18n;
+    private final Executor syncExecutor;
+    private final Mode mode;
+
+    private final long started = System.currentTimeMillis();
+    private final Map<String, Long> runningStages = new ConcurrentHashMap<>();
+    private final Set<Statement> statements = ConcurrentHashMap.newKeySet();
+    private final AtomicLong rows = new AtomicLong();
+
+    private volatile boolean cancelled = false;
+    private volatile Throwable abortCause = null;
+    private volatile boolean done = false;
+
+    public MigrationProgress(CommandSource source, I18n i18n, Executor syncExecutor, Mode mode)
+    {
+        this.mode = mode;
+        this.source = source;
+        this.i18n = i18n;
+        this.syncExecutor = syncExecutor;
+    }
+
+    public void estimated(String stage, long sourceRows, long millis)
+    {
+        this.send(NEUTRAL, "{name}: {amount} source rows. Estimated: {input#time}", stage, sourceRows, formatTime(millis));
+    }
+
+    public void estimatedTotal(long millis)
+    {
+        this.send(POSITIVE, "Estimated migration duration: {input#time}", formatTime(millis));
+    }
+
+    public void resumed(int stagesDone)
+    {
+        this.send(NEUTRAL, "Resuming the last migration. {amount} stages are already done.", stagesDone);
+    }
+
+    public void stageStarted(String stage)
+    {
+        this.checkCancelled();
+        this.runningStages.put(stage, System.currentTimeMillis());
+        this.send(NEUTRAL, "Migrating {name}...", stage);
+    }
+
+    public void stageDone(String stage)
+    {
+        Long stageStart = this.runningStages.remove(stage);
+        long time = System.currentTimeMillis() - (stageStart == null ? started : stageStart);
+        this.send(POSITIVE, "Finished {name} in {input#time}. Elapsed: {input#elapsed}", stage, formatTime(time), formatTime(elapsed()));
+    }
+
+    /**
+     * Adds the given amount of rows to the total and reports it for given stage
+     */
+    public void rowsDone(String stage, String what, long cnt)
+    {
+        this.addRows(cnt);
+        this.report(stage, what, cnt);
+    }
+
+    /**
+     * Adds the given amount of rows to the total without reporting it
+     */
+    public void addRows(long cnt)
+    {
+        this.rows.addAndGet(cnt);
+    }
+
+    /**
+     * Reports the amount of rows done for given stage without adding them to the total
+     */
+    public void report(String stage, String what, long cnt)
+    {
+        this.send(NEUTRAL, "{name}: {amount} {input#what} ({amount#total} rows total)", stage, cnt, what, rows.get());
+    }
+
+    /**
+     * Sends a message to the CommandSource that started the migration
+     */
+    public void message(MessageType type, String msg, Object... args)
+    {
+        this.send(type, msg, args);
+    }
+
+    /**
+     * Registers a Statement so it can be cancelled while executing
+     */
+    public <T extends Statement> T track(T stmt)
+    {
+        this.statements.add(stmt);
+        return stmt;
+    }
+
+    public void untrack(Statement stmt)
+    {
+        this.statements.remove(stmt);
+    }
+
+    /**
+     * Throws a CancellationException if the migration was cancelled
+     */
+    public void checkCancelled()
+    {
+        if (this.cancelled)
+        {
+            throw new CancellationException("Migration was cancelled");
+        }
+        if (this.abortCause != null)
+        {
+            throw new CancellationException("Migration was aborted: " + abortCause.getMessage());
+        }
+    }
+
+    public void cancel()
+    {
+        this.cancelled = true;
+        this.cancelStatements();
+    }
+
+    /**
+     * Stops all other running work after a failure without marking the migration as cancelled
+     */
+    public void abort(Throwable cause)
+    {
+        this.abortCause = cause;
+        this.cancelStatements();
+    }
+
+    private void cancelStatements()
+    {
+        for (Statement stmt : this.statements)
+        {
+            try
+            {
+                stmt.cancel();
+            }
+            catch (SQLException ignore)
+            {
+                // Statement is already closed or the driver does not support it
+            }
+        }
+    }
+
+    public void finished(Throwable failure)
+    {
+        this.done = true;
+        this.runningStages.clear();
+        this.statements.clear();
+        if (failure == null && mode == Mode.DRY_RUN)
+        {
+            this.send(POSITIVE, "Dry run done after {input#elapsed}", formatTime(elapsed()));
+        }
+        else if (failure == null && mode == Mode.VERIFY)
+        {
+            this.send(POSITIVE, "Verification done after {input#elapsed}", formatTime(elapsed()));
+        }
+        else if (failure == null)
+        {
+            this.send(POSITIVE, "Migration done! {amount} rows in {input#elapsed}", rows.get(), formatTime(elapsed()));
+        }
+        else if ((failure instanceof CancellationException || this.cancelled) && mode == Mode.DRY_RUN)
+        {
+            this.send(NEGATIVE, "Dry run cancelled after {input#elapsed}", formatTime(elapsed()));
+        }
+        else if ((failure instanceof CancellationException || this.cancelled) && mode == Mode.VERIFY)
+        {
+            this.send(NEGATIVE, "Verification cancelled after {input#elapsed}", formatTime(elapsed()));
+        }
+        else if (failure instanceof CancellationException || this.cancelled)
+        {
+            this.send(NEGATIVE, "Migration cancelled after {input#elapsed}", formatTime(elapsed()));
+        }
+        else if (mode == Mode.DRY_RUN)
+        {
+            this.send(NEGATIVE, "Dry run failed after {input#elapsed}: {input#error}", formatTime(elapsed()), failure.getMessage());
+        }
+        else if (mode == Mode.VERIFY)
+        {
+            this.send(NEGATIVE, "Verification failed after {input#elapsed}: {input#error}", formatTime(elapsed()), failure.getMessage());
+        }
+        else
+        {
+            this.send(NEGATIVE, "Migration failed after {input#elapsed}: {input#error}", formatTime(elapsed()), failure.getMessage());
+        }
+    }
+
+    public boolean isDone()
+    {
+        return done;
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    public long elapsed()
+    {
+        return System.currentTimeMillis() - started;
+    }
+
+    /**
+     * Sends the current status to given CommandSource
+     */
+    public void sendStatus(CommandSource to)
+    {
+        if (this.done)
+        {
+            i18n.send(to, NEUTRAL, "The last migration finished with {amount} rows.", rows.get());
+            return;
+        }
+        i18n.send(to, NEUTRAL, "Migration running for {input#elapsed}. {amount} rows done.", formatTime(elapsed()), rows.get());
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> entry : this.runningStages.entrySet())
+        {
+            i18n.send(to, NEUTRAL, " - {name} running for {input#time}", entry.getKey(), formatTime(now - entry.getValue()));
+        }
+    }
+
+    private void send(MessageType type, String msg, Object... args)
+    {
+        this.syncExecutor.execute(() -> i18n.send(source, type, msg, args));
+    }
+
+    public enum Mode
+    {
+        MIGRATE,
+        DRY_RUN,
+        VERIFY
+    }
+
+    static String formatTime(long millis)
+    {
+        long seconds = millis / 1000;
+        if (seconds < 60)
+        {
+            return String.format("%d.%ds", seconds, (millis % 1000) / 100);
+        }
+        return String.format("%dm %02ds", seconds / 60, seconds % 60);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects timings and row counts of a migration and writes them as JSON
+ */
+public class MigrationReport
+{
+    public static final String FILE = "migration-report.json";
+    public static final String DRY_RUN_FILE = "migration-dryrun.json";
+    /**
+     * Delta migrations only copy a few rows, so their throughput must not replace the one dry runs estimate with
+     */
+    public static final String DELTA_FILE = "migration-delta.json";
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private String status = "running";
+    private boolean dryRun;
+    private long started = System.currentTimeMillis();
+    private long durationMillis;
+    private long rows;
+    private double rowsPerSecond;
+    private Long estimatedMillis;
+    private final Map<String, StageReport> stages = new LinkedHashMap<>();
+
+    public MigrationReport(boolean dryRun)
+    {
+        this.dryRun = dryRun;
+    }
+
+    public synchronized StageReport stage(String name)
+    {
+        return stages.computeIfAbsent(name, StageReport::new);
+    }
+
+    public synchronized StageReport getStage(String name)
+    {
+        return stages.get(name);
+    }
+
+    public synchronized void setEstimatedMillis(long estimatedMillis)
+    {
+        this.estimatedMillis = estimatedMillis;
+    }
+
+    public synchronized void finish(String status)
+    {
+        this.status = status;
+        this.durationMillis = System.currentTimeMillis() - started;
+        this.rows = 0;
+        for (StageReport stage : stages.values())
+        {
+            this.rows += stage.rows;
+        }
+        this.rowsPerSecond = perSecond(rows, durationMillis);
+    }
+
+    public synchronized void write(Path file) throws IOException
+    {
+        Files.createDirectories(file.getParent());
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            GSON.toJson(this, writer);
+        }
+    }
+
+    /**
+     * @return the report in given file or null if there is none
+     */
+    public static MigrationReport read(Path file) throws IOException
+    {
+        if (!Files.exists(file))
+        {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            return GSON.fromJson(reader, MigrationReport.class);
+        }
+        catch (JsonParseException e)
+        {
+            throw new IOException("Invalid report " + file, e);
+        }
+    }
+
+    static double perSecond(long rows, long millis)
+    {
+        return millis <= 0 ? 0 : rows * 1000d / millis;
+    }
+
+    public static class StageReport
+    {
+        private final String name;
+        private long started;
+        private long durationMillis;
+        private long rows;
+        private double rowsPerSecond;
+        private long connectionWaitMillis;
+        private Long sourceRows;
+        private Long estimatedMillis;
+        private final List<StepReport> steps = new ArrayList<>();
+        private final Map<String, Long> skipped = new LinkedHashMap<>();
+
+        private StageReport(String name)
+        {
+            this.name = name;
+        }
+
+        public synchronized void start()
+        {
+            this.started = System.currentTimeMillis();
+        }
+
+        public synchronized void connectionWait(long millis)
+        {
+            this.connectionWaitMillis += millis;
+        }
+
+        public synchronized void step(String what, long rows, long millis)
+        {
+            this.steps.add(new StepReport(what, rows, millis));
+            this.rows += rows;
+        }
+
+        /**
+         * Counts source rows that could not be migrated
+         */
+        public synchronized void skipped(String what, long cnt)
+        {
+            this.skipped.merge(what, cnt, Long::sum);
+        }
+
+        public synchronized void finish()
+        {
+            this.durationMillis = System.currentTimeMillis() - started;
+            this.rowsPerSecond = perSecond(rows, durationMillis);
+        }
+
+        public synchronized void estimate(long sourceRows, long estimatedMillis)
+        {
+            this.sourceRows = sourceRows;
+            this.estimatedMillis = estimatedMillis;
+        }
+
+        public synchronized double getRowsPerSecond()
+        {
+            return rowsPerSecond;
+        }
+    }
+
+    public static class StepReport
+    {
+        private final String name;
+        private final long rows;
+        private final long durationMillis;
+        private final double rowsPerSecond;
+
+        private StepReport(String name, long rows, long durationMillis)
+        {
+            this.name = name;
+            this.rows = rows;
+            this.durationMillis = durationMillis;
+            this.rowsPerSecond = perSecond(rows, durationMillis);
+        }
+    }
+}
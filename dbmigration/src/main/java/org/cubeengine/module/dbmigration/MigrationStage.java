@@ -0,0 +1,243 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A part of the migration. Stages declare the stages they depend on
+ * and are run by the {@link StageScheduler} as soon as all of them are done.
+ */
+public abstract class MigrationStage
+{
+    private final String name;
+    private final Set<String> dependencies;
+
+    protected MigrationStage(String name, String... dependencies)
+    {
+        this.name = name;
+        this.dependencies = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(dependencies)));
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Set<String> getDependencies()
+    {
+        return dependencies;
+    }
+
+    /**
+     * @return the old tables without prefix read by this stage. Tables read by multiple steps are listed once per step.
+     */
+    public List<String> getSourceTables()
+    {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the tables of {@link #getSourceTables()} this stage can do without
+     */
+    public List<String> getOptionalSourceTables()
+    {
+        return Collections.emptyList();
+    }
+
+    /**
+     * The checks comparing the migrated rows with the old rows.
+     * The source side reads the old tables with the configured prefix as it may run on a separate source database.
+     */
+    public List<VerifyCheck> getChecks(MigrationContext ctx)
+    {
+        return Collections.emptyList();
+    }
+
+    /**
+     * The marks of these steps are read from the source tables with the configured prefix when a migration starts.
+     *
+     * @return the {@link Delta} of every copy step by its name
+     */
+    public Map<String, Delta> getDeltas(MigrationContext ctx)
+    {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Disabled stages are skipped. Stages depending on them will still run.
+     */
+    public boolean isEnabled(MigrationContext ctx)
+    {
+        return true;
+    }
+
+    /**
+     * Runs this stage on its own connection
+     */
+    public abstract void migrate(MigrationContext ctx, Connection conn) throws SQLException;
+
+    protected Statement statement(MigrationContext ctx, Connection conn) throws SQLException
+    {
+        return ctx.getProgress().track(conn.createStatement());
+    }
+
+    /**
+     * @return whether the old data in the target tables should be deleted before copying.
+     *         This is never the case when resuming a started stage.
+     */
+    protected boolean clearTarget(MigrationContext ctx)
+    {
+        return !ctx.isKeepOld() && isFirstRun(ctx);
+    }
+
+    /**
+     * @return whether this stage is run for the first time and not resumed
+     */
+    protected boolean isFirstRun(MigrationContext ctx)
+    {
+        return !ctx.getJournal().isStarted(name);
+    }
+
+    protected int update(MigrationContext ctx, Statement stmt, String what, String sql) throws SQLException
+    {
+        ctx.getProgress().checkCancelled();
+        int cnt = stmt.executeUpdate(sql);
+        ctx.getLogger().info(cnt + " " + what);
+        ctx.getProgress().rowsDone(name, what, cnt);
+        return cnt;
+    }
+
+    /**
+     * Runs an INSERT ... SELECT statement. Uses a {@link ChunkedCopy} when chunked copying is enabled.
+     * <p>The copy is recorded in the {@link MigrationJournal} and skipped if it was done in a previous run.
+     *
+     * @param oldTable the name of the source table without prefix
+     * @param alias the alias of the source table in the statement
+     * @param key the numeric key column of the source table
+     * @param sql the statement. It has to end with a WHERE clause
+     */
+    protected long copy(MigrationContext ctx, Connection conn, Statement stmt, String what,
+                        String oldTable, String alias, String key, String sql) throws SQLException
+    {
+        return copy(ctx, conn, stmt, what, oldTable, alias, key, sql, null);
+    }
+
+    /**
+     * Runs an INSERT ... SELECT statement that only copies the rows added or changed since the last migration
+     * in a delta migration. The new high-water mark is recorded in the {@link DeltaMarks} with the copied rows.
+     *
+     * @param delta how to find the added or changed rows
+     * @see #copy(MigrationContext, Connection, Statement, String, String, String, String, String)
+     */
+    protected long copy(MigrationContext ctx, Connection conn, Statement stmt, String what,
+                        String oldTable, String alias, String key, String sql, Delta delta) throws SQLException
+    {
+        MigrationJournal journal = ctx.getJournal();
+        if (journal.isStepDone(name, what))
+        {
+            ctx.getLogger().info("{} already done", what);
+            return 0;
+        }
+        // Always continue a step with a checkpoint in chunks
+        boolean chunked = ctx.getConfig().chunkedCopy || journal.getCheckpoint(name, what) != null;
+        String upsert = "";
+        String newMark = null;
+        Long startKey = null;
+        if (delta != null)
+        {
+            if (ctx.isDelta())
+            {
+                upsert = delta.getUpsert(); // a full migration inserts into a cleared or new table
+            }
+            String pendingStep = what + DeltaMarks.PENDING;
+            newMark = ctx.getMarks().get(name, pendingStep); // read when the migration started
+            if (delta.getColumn() != null && newMark == null)
+            {
+                newMark = delta.readMark(stmt, ctx.getOldPrefix());
+                if (chunked)
+                {
+                    // A resumed copy has to use the same mark
+                    ctx.getMarks().set(conn, name, pendingStep, newMark);
+                }
+            }
+            String lastMark = ctx.getMarks().get(name, what);
+            String condition = delta.condition(lastMark, newMark, ctx.isDelta());
+            if (condition != null)
+            {
+                sql += " AND " + condition;
+            }
+            if (ctx.isDelta() && lastMark != null)
+            {
+                ctx.getLogger().info("{}: copying changes since {}", what, lastMark);
+                if (delta.isKey(alias, key))
+                {
+                    startKey = Long.parseLong(lastMark); // no need to page through the rows copied before
+                }
+            }
+        }
+        long start = System.currentTimeMillis();
+        long cnt;
+        if (!chunked)
+        {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try
+            {
+                cnt = update(ctx, stmt, what, sql + upsert);
+                if (newMark != null)
+                {
+                    ctx.getMarks().done(conn, name, what, newMark);
+                }
+                journal.stepDone(conn, name, what);
+                conn.commit();
+            }
+            catch (SQLException | RuntimeException e)
+            {
+                conn.rollback();
+                throw e;
+            }
+            finally
+            {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+        else
+        {
+            cnt = new ChunkedCopy(ctx, name, what, ctx.getOldPrefix() + oldTable, alias, key).copy(conn, sql, upsert, newMark, startKey);
+            ctx.getLogger().info(cnt + " " + what);
+            ctx.getProgress().report(name, what, cnt);
+        }
+        ctx.getReport().stage(name).step(what, cnt, System.currentTimeMillis() - start);
+        return cnt;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import org.cubeengine.libcube.ModuleManager;
+import org.cubeengine.libcube.service.database.Database;
+import org.cubeengine.libcube.service.database.mysql.MySQLDatabaseConfiguration;
+import org.cubeengine.logscribe.Log;
+import org.cubeengine.module.dbmigration.stage.ConomyStage;
+import org.cubeengine.module.dbmigration.stage.LockAccessStage;
+import org.cubeengine.module.dbmigration.stage.LockLocationStage;
+import org.cubeengine.module.dbmigration.stage.LockStage;
+import org.cubeengine.module.dbmigration.stage.SignMarketStage;
+import org.cubeengine.module.dbmigration.stage.SourceCopyStage;
+import org.cubeengine.module.dbmigration.stage.UUIDMappingStage;
+import org.cubeengine.module.dbmigration.stage.VoteStage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Migrates the old Bukkit data. Runs off the server thread and reports to a {@link MigrationProgress}.
+ * <p>The actual work is split into {@link MigrationStage}s run by the {@link StageScheduler}.
+ * Writes a {@link MigrationReport} into the module folder when done.
+ * A dry run only counts the source rows and estimates the duration.
+ */
+public class MigrationTask implements Runnable
+{
+    private final MigrationConfig config;
+    private final Database db;
+    private final ModuleManager mm;
+    private final Log logger;
+    private final MigrationProgress progress;
+    private final Path folder;
+    private final boolean keepOld;
+    private final boolean restart;
+    private final boolean dryRun;
+    private final boolean delta;
+    private final MigrationReport report;
+    private final SourceDatabase source;
+
+    public MigrationTask(MigrationConfig config, Database db, ModuleManager mm, Log logger, MigrationProgress progress, Path folder,
+                         boolean keepOld, boolean restart, boolean dryRun, boolean delta)
+    {
+        this.config = config;
+        this.db = db;
+        this.mm = mm;
+        this.logger = logger;
+        this.progress = progress;
+        this.folder = folder;
+        this.keepOld = keepOld || delta; // a delta migration builds on the migrated data
+        this.restart = restart;
+        this.dryRun = dryRun;
+        this.delta = delta;
+        this.report = new MigrationReport(dryRun);
+        this.source = new SourceDatabase(config, db);
+    }
+
+    @Override
+    public void run()
+    {
+        Throwable failure = null;
+        try
+        {
+            this.migrate();
+            logger.info(dryRun ? "Dry run done!" : "Migration done!");
+        }
+        catch (Throwable t)
+        {
+            failure = t;
+            if (progress.isCancelled())
+            {
+                logger.warn("Migration was cancelled!");
+            }
+            else
+            {
+                logger.error(t, "Migration failed!");
+            }
+        }
+        finally
+        {
+            report.finish(failure == null ? "done" : progress.isCancelled() ? "cancelled" : "failed");
+            Path file = folder.resolve(dryRun ? MigrationReport.DRY_RUN_FILE : delta ? MigrationReport.DELTA_FILE : MigrationReport.FILE);
+            try
+            {
+                report.write(file);
+                logger.info("Wrote report to {}", file);
+            }
+            catch (IOException e)
+            {
+                logger.error(e, "Could not write the migration report");
+            }
+            progress.finished(failure);
+        }
+    }
+
+    private void migrate() throws SQLException
+    {
+        String mainPrefix = ((MySQLDatabaseConfiguration) db.getDatabaseConfig()).tablePrefix;
+        logger.info("from prefix " + config.prefix +" to prefix " + mainPrefix);
+        if (source.isSeparate())
+        {
+            logger.info("Old tables are copied from {}", config.sourceUrl);
+        }
+        MigrationContext ctx = new MigrationContext(config, mm, logger, progress, report, folder, mainPrefix, keepOld,
+                                                    source.isSeparate(), delta);
+
+        StageScheduler scheduler = new StageScheduler(db, ctx);
+        for (MigrationStage stage : createStages())
+        {
+            scheduler.add(stage);
+        }
+
+        Set<String> stagingTables = new LinkedHashSet<>();
+        Set<String> keptTables = new HashSet<>();
+        if (source.isSeparate())
+        {
+            Set<String> optionalTables = new HashSet<>();
+            Map<String, Integer> readers = new HashMap<>();
+            Map<String, List<Delta>> deltas = new HashMap<>();
+            for (MigrationStage stage : scheduler.getStages())
+            {
+                if (stage.isEnabled(ctx))
+                {
+                    stagingTables.addAll(stage.getSourceTables());
+                    optionalTables.addAll(stage.getOptionalSourceTables());
+                    for (String table : stage.getSourceTables())
+                    {
+                        readers.merge(table, 1, Integer::sum);
+                    }
+                    for (Delta delta : stage.getDeltas(ctx).values())
+                    {
+                        if (delta.getColumn() != null)
+                        {
+                            deltas.computeIfAbsent(delta.getTable(), t -> new ArrayList<>()).add(delta);
+                        }
+                    }
+                }
+            }
+            this.checkSourceTables(stagingTables, optionalTables);
+            for (String table : stagingTables)
+            {
+                // Only copy the changes of tables where every reading step knows its changed rows
+                List<Delta> tableDeltas = deltas.getOrDefault(table, Collections.emptyList());
+                if (tableDeltas.size() != readers.get(table))
+                {
+                    tableDeltas = Collections.emptyList();
+                }
+                SourceCopyStage stage = new SourceCopyStage(table, source, db, optionalTables.contains(table), tableDeltas);
+                scheduler.addSource(table, stage);
+                if (stage.isIncremental())
+                {
+                    keptTables.add(table);
+                }
+            }
+            int writers = PipelinedCopy.getWriters(config);
+            if (writers < config.pipelineWriters || config.parallelStages * (writers + 1) > config.maxConnections)
+            {
+                logger.warn("Using {} pipeline writers per copy. {} parallel stages may use up to {} of {} connections",
+                            writers, config.parallelStages, config.parallelStages * (writers + 1), config.maxConnections);
+            }
+        }
+
+        if (dryRun)
+        {
+            this.estimate(ctx, scheduler);
+            return;
+        }
+
+        MigrationJournal journal = ctx.getJournal();
+        try (Connection conn = db.getConnection())
+        {
+            journal.load(conn, restart);
+            ctx.getMarks().load(conn);
+            if (restart)
+            {
+                ctx.getMarks().clearPending(conn);
+            }
+        }
+        this.readMarks(ctx, scheduler);
+        if (delta)
+        {
+            logger.info("Delta migration using {} high-water marks", ctx.getMarks().size());
+        }
+        if (journal.getStagesDone() > 0)
+        {
+            logger.info("Resuming migration. {} stages are already done", journal.getStagesDone());
+            progress.resumed(journal.getStagesDone());
+        }
+
+        scheduler.run(config.parallelStages);
+
+        try (Connection conn = db.getConnection();
+             Statement stmt = conn.createStatement())
+        {
+            journal.clear(conn);
+            ctx.getMarks().clearPending(conn);
+            for (String table : stagingTables)
+            {
+                if (!keptTables.contains(table)) // a delta migration only copies the changes into the kept tables
+                {
+                    stmt.execute("DROP TABLE IF EXISTS " + ctx.getOldPrefix() + table);
+                }
+            }
+        }
+
+        // OLD basicuser: not needed
+        // OLD holiday: empty
+        // OLD ignorelist: empty
+        // OLD kits: not needed?
+
+        // OLD mail: not needed
+        // OLD namehistory: not needed
+        // OLD registry: not needed
+
+        // OLD repairblocks: not needed for us
+        // OLD roles:    separate module for that as we cannot use offline custom data yet
+        // OLD userdata: separate module for that as we cannot use offline custom data yet
+        // OLD userperms:separate module for that as we cannot use offline custom data yet
+
+        // OLD signmarketblocks: toNBT see SignMarketStage
+        // OLD signmarketitem: toNBT see SignMarketStage
+
+        // OLD teleportinvites: TODO toConfig
+        // OLD teleportpoints: TODO toConfig
+    }
+
+    /**
+     * Reads the marks of all copy steps before anything is copied, so every step copies the same snapshot
+     * and rows added meanwhile never lose the rows they reference. A resumed migration keeps the marks it started with.
+     */
+    private void readMarks(MigrationContext ctx, StageScheduler scheduler) throws SQLException
+    {
+        DeltaMarks marks = ctx.getMarks();
+        if (marks.hasPending())
+        {
+            logger.info("Using the marks of the interrupted migration");
+            return;
+        }
+        try (Connection sourceConn = source.getConnection();
+             Statement stmt = progress.track(sourceConn.createStatement());
+             Connection conn = db.getConnection())
+        {
+            for (MigrationStage stage : scheduler.getStages())
+            {
+                if (!stage.isEnabled(ctx))
+                {
+                    continue;
+                }
+                for (Map.Entry<String, Delta> entry : stage.getDeltas(ctx).entrySet())
+                {
+                    if (entry.getValue().getColumn() != null && !ctx.getJournal().isStepDone(stage.getName(), entry.getKey()))
+                    {
+                        marks.set(conn, stage.getName(), entry.getKey() + DeltaMarks.PENDING,
+                                  entry.getValue().readMark(stmt, config.prefix));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Fails before anything is copied if a required old table is missing in the source database
+     */
+    private void checkSourceTables(Set<String> tables, Set<String> optionalTables) throws SQLException
+    {
+        List<String> missing = new ArrayList<>();
+        try (Connection conn = source.getConnection())
+        {
+            for (String table : tables)
+            {
+                if (!optionalTables.contains(table) && !SourceDatabase.hasTable(conn, config.prefix + table))
+                {
+                    missing.add(config.prefix + table);
+                }
+            }
+        }
+        if (!missing.isEmpty())
+        {
+            throw new SQLException("The source database is missing the tables " + String.join(", ", missing));
+        }
+    }
+
+    /**
+     * @return all stages of the migration
+     */
+    static List<MigrationStage> createStages()
+    {
+        return Arrays.asList(
+            UUIDMappingStage.users(),
+            UUIDMappingStage.worlds(),
+            new ConomyStage(),
+            new VoteStage(),
+            new LockStage(),
+            new LockLocationStage(),
+            new LockAccessStage(),
+            new SignMarketStage());
+    }
+
+    /**
+     * Counts the source rows of every stage and estimates the duration
+     * using the throughput of the last migration report or the configured default.
+     */
+    private void estimate(MigrationContext ctx, StageScheduler scheduler) throws SQLException
+    {
+        MigrationReport last;
+        try
+        {
+            last = MigrationReport.read(folder.resolve(MigrationReport.FILE));
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not read the last migration report: {}", e.getMessage());
+            last = null;
+        }
+
+        Map<String, Long> tableRows = new HashMap<>();
+        Map<String, Long> estimates = new HashMap<>();
+        try (Connection conn = source.getConnection();
+             Statement stmt = progress.track(conn.createStatement()))
+        {
+            for (MigrationStage stage : scheduler.getStages())
+            {
+                if (!stage.isEnabled(ctx))
+                {
+                    continue;
+                }
+                long rows = 0;
+                for (String table : stage.getSourceTables())
+                {
+                    progress.checkCancelled();
+                    Long cnt = tableRows.get(table);
+                    if (cnt == null && !SourceDatabase.hasTable(conn, config.prefix + table))
+                    {
+                        cnt = 0L; // an optional table
+                    }
+                    if (cnt == null)
+                    {
+                        try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + config.prefix + table))
+                        {
+                            cnt = rs.next() ? rs.getLong(1) : 0;
+                        }
+                        tableRows.put(table, cnt);
+                    }
+                    rows += cnt;
+                }
+
+                double rate = config.estimatedRowsPerSecond;
+                MigrationReport.StageReport lastStage = last == null ? null : last.getStage(stage.getName());
+                if (lastStage != null && lastStage.getRowsPerSecond() > 0)
+                {
+                    rate = lastStage.getRowsPerSecond();
+                }
+                long millis = (long) (rows * 1000 / Math.max(1, rate));
+                estimates.put(stage.getName(), millis);
+                report.stage(stage.getName()).estimate(rows, millis);
+                progress.estimated(stage.getName(), rows, millis);
+            }
+        }
+
+        long total = scheduler.estimate(stage -> estimates.getOrDefault(stage.getName(), 0L));
+        report.setEstimatedMillis(total);
+        progress.estimatedTotal(total);
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.NEGATIVE;
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.NEUTRAL;
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.POSITIVE;
+
+import org.cubeengine.libcube.ModuleManager;
+import org.cubeengine.libcube.service.database.Database;
+import org.cubeengine.libcube.service.database.mysql.MySQLDatabaseConfiguration;
+import org.cubeengine.logscribe.Log;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the migrated data with the old data using the {@link VerifyCheck}s of all enabled stages.
+ * <p>Every check is split into key ranges which are compared in parallel. Each worker uses its own
+ * source and target connection. Only the ranges that differ are reported and written into a {@link VerifyReport}.
+ */
+public class MigrationVerification implements Runnable
+{
+    private static final int MAX_MESSAGES = 20;
+
+    private final MigrationConfig config;
+    private final Database db;
+    private final ModuleManager mm;
+    private final Log logger;
+    private final MigrationProgress progress;
+    private final Path folder;
+    private final SourceDatabase source;
+    private final VerifyReport report = new VerifyReport();
+
+    private final AtomicInteger rangesDone = new AtomicInteger();
+    private final AtomicInteger messages = new AtomicInteger();
+    private int rangeCount;
+
+    public MigrationVerification(MigrationConfig config, Database db, ModuleManager mm, Log logger, MigrationProgress progress, Path folder)
+    {
+        this.config = config;
+        this.db = db;
+        this.mm = mm;
+        this.logger = logger;
+        this.progress = progress;
+        this.folder = folder;
+        this.source = new SourceDatabase(config, db);
+    }
+
+    @Override
+    public void run()
+    {
+        Throwable failure = null;
+        try
+        {
+            this.verify();
+        }
+        catch (Throwable t)
+        {
+            failure = t;
+            if (!progress.isCancelled())
+            {
+                logger.error(t, "Verification failed!");
+            }
+        }
+        finally
+        {
+            report.finish(failure == null ? "done" : progress.isCancelled() ? "cancelled" : "failed");
+            Path file = folder.resolve(VerifyReport.FILE);
+            try
+            {
+                report.write(file);
+                logger.info("Wrote verification report to {}", file);
+            }
+            catch (IOException e)
+            {
+                logger.error(e, "Could not write the verification report");
+            }
+            if (failure == null)
+            {
+                if (report.getMismatches() == 0)
+                {
+                    progress.message(POSITIVE, "All {amount} ranges match.", rangeCount);
+                }
+                else
+                {
+                    progress.message(NEGATIVE, "{amount} of {amount} ranges differ. See {input#file}",
+                                     report.getMismatches(), rangeCount, VerifyReport.FILE);
+                }
+            }
+            progress.finished(failure);
+        }
+    }
+
+    private void verify() throws SQLException
+    {
+        String mainPrefix = ((MySQLDatabaseConfiguration) db.getDatabaseConfig()).tablePrefix;
+        MigrationContext ctx = new MigrationContext(config, mm, logger, progress, new MigrationReport(false), folder,
+                                                    mainPrefix, true, source.isSeparate(), false);
+        long rangeSize = Math.max(1, config.verifyRangeSize);
+        List<Range> ranges = new ArrayList<>();
+        try (Connection sourceConn = source.getConnection();
+             Connection targetConn = db.getConnection())
+        {
+            for (MigrationStage stage : MigrationTask.createStages())
+            {
+                if (!stage.isEnabled(ctx))
+                {
+                    continue;
+                }
+                for (VerifyCheck check : stage.getChecks(ctx))
+                {
+                    progress.checkCancelled();
+                    long[] bounds = bounds(sourceConn, check.getSource(), bounds(targetConn, check.getTarget(), null));
+                    int cnt = 0;
+                    if (bounds != null)
+                    {
+                        for (long from = bounds[0] - 1; from < bounds[1]; from += rangeSize)
+                        {
+                            ranges.add(new Range(check, from, Math.min(bounds[1], from + rangeSize)));
+                            cnt++;
+                        }
+                    }
+                    report.check(check.getName()).ranges(cnt);
+                }
+            }
+        }
+        this.rangeCount = ranges.size();
+        progress.message(NEUTRAL, "Verifying {amount} ranges...", rangeCount);
+        if (ranges.isEmpty())
+        {
+            return;
+        }
+
+        Queue<Range> queue = new ConcurrentLinkedQueue<>(ranges);
+        int threads = Math.max(1, Math.min(config.parallelStages, ranges.size()));
+        AtomicInteger threadId = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                r -> new Thread(r, "CubeEngine-DbMigration-Verify-" + threadId.incrementAndGet()));
+        try
+        {
+            CompletableFuture[] workers = new CompletableFuture[threads];
+            for (int i = 0; i < threads; i++)
+            {
+                workers[i] = CompletableFuture.runAsync(() -> this.work(queue), pool);
+            }
+            CompletableFuture.allOf(workers).join();
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof SQLException)
+            {
+                throw (SQLException) e.getCause();
+            }
+            throw e;
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the lowest and highest key including the given bounds or null if there are no rows
+     */
+    private long[] bounds(Connection conn, VerifyCheck.Side side, long[] bounds) throws SQLException
+    {
+        try (PreparedStatement stmt = progress.track(conn.prepareStatement(side.bounds()));
+             ResultSet rs = stmt.executeQuery())
+        {
+            progress.untrack(stmt);
+            if (!rs.next() || rs.getObject(1) == null)
+            {
+                return bounds;
+            }
+            if (bounds == null)
+            {
+                return new long[]{rs.getLong(1), rs.getLong(2)};
+            }
+            return new long[]{Math.min(bounds[0], rs.getLong(1)), Math.max(bounds[1], rs.getLong(2))};
+        }
+    }
+
+    private void work(Queue<Range> queue)
+    {
+        Map<VerifyCheck, PreparedStatement[]> statements = new HashMap<>();
+        try (Connection sourceConn = source.getConnection();
+             Connection targetConn = db.getConnection())
+        {
+            Range range;
+            while ((range = queue.poll()) != null)
+            {
+                progress.checkCancelled();
+                PreparedStatement[] stmts = statements.get(range.check);
+                if (stmts == null)
+                {
+                    stmts = new PreparedStatement[]{
+                        progress.track(sourceConn.prepareStatement(range.check.getSource().checksum())),
+                        progress.track(targetConn.prepareStatement(range.check.getTarget().checksum()))};
+                    statements.put(range.check, stmts);
+                }
+                this.compare(range, stmts[0], stmts[1]);
+            }
+        }
+        catch (SQLException e)
+        {
+            progress.abort(e);
+            throw new CompletionException(e);
+        }
+        catch (RuntimeException e)
+        {
+            progress.abort(e);
+            throw e;
+        }
+        finally
+        {
+            for (PreparedStatement[] stmts : statements.values())
+            {
+                progress.untrack(stmts[0]);
+                progress.untrack(stmts[1]);
+            }
+        }
+    }
+
+    private void compare(Range range, PreparedStatement sourceStmt, PreparedStatement targetStmt) throws SQLException
+    {
+        Checksum source = checksum(sourceStmt, range);
+        Checksum target = checksum(targetStmt, range);
+        VerifyReport.CheckReport check = report.check(range.check.getName());
+        check.checked(source.rows, target.rows);
+        if (source.rows != target.rows || !source.sum.equals(target.sum))
+        {
+            check.mismatch(range.from, range.to, source.rows, target.rows, source.sum, target.sum);
+            logger.warn("{}: keys {} to {} differ. Source: {} rows, Target: {} rows",
+                        range.check.getName(), range.from + 1, range.to, source.rows, target.rows);
+            if (messages.incrementAndGet() <= MAX_MESSAGES)
+            {
+                progress.message(NEGATIVE, "{name}: keys {amount#from} to {amount#to} differ. Source: {amount} rows, Target: {amount} rows",
+                                 range.check.getName(), range.from + 1, range.to, source.rows, target.rows);
+            }
+        }
+        int done = rangesDone.incrementAndGet();
+        int step = Math.max(1, rangeCount / 10);
+        if (done % step == 0 && done != rangeCount)
+        {
+            progress.message(NEUTRAL, "{amount} of {amount} ranges verified", done, rangeCount);
+        }
+    }
+
+    private static Checksum checksum(PreparedStatement stmt, Range range) throws SQLException
+    {
+        stmt.setLong(1, range.from);
+        stmt.setLong(2, range.to);
+        try (ResultSet rs = stmt.executeQuery())
+        {
+            rs.next();
+            return new Checksum(rs.getLong(1), rs.getBigDecimal(2).toPlainString());
+        }
+    }
+
+    private static class Range
+    {
+        private final VerifyCheck check;
+        private final long from;
+        private final long to;
+
+        private Range(VerifyCheck check, long from, long to)
+        {
+            this.check = check;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static class Checksum
+    {
+        private final long rows;
+        private final String sum;
+
+        private Checksum(long rows, String sum)
+        {
+            this.rows = rows;
+            this.sum = sum;
+        }
+    }
+}
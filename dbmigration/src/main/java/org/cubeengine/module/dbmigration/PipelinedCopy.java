@@ -0,0 +1,296 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import org.cubeengine.libcube.service.database.Database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies a table between two databases.
+ * <p>A single reader streams the source table and hands batches of rows through a bounded queue
+ * to writer threads inserting them into the target with their own connection.
+ * Reading and writing overlap, so the copy runs at the speed of the slower side.
+ * A full queue blocks the reader, so memory is bounded by queue-size batches.
+ */
+public class PipelinedCopy
+{
+    private static final long POLL_MILLIS = 100;
+    private static final int MAX_PARAMETERS = 65535;
+
+    private final MigrationContext ctx;
+    private final int batchSize;
+    private final int queueSize;
+    private final int writers;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicLong written = new AtomicLong();
+    private volatile boolean readerDone = false;
+
+    public PipelinedCopy(MigrationContext ctx)
+    {
+        this.ctx = ctx;
+        this.batchSize = Math.max(1, ctx.getConfig().pipelineBatchSize);
+        this.queueSize = Math.max(1, ctx.getConfig().pipelineQueueSize);
+        this.writers = getWriters(ctx.getConfig());
+    }
+
+    /**
+     * Every running copy stage holds its own connection and one per writer.
+     *
+     * @return the writers per copy so parallel-stages copies fit into max-connections
+     */
+    public static int getWriters(MigrationConfig config)
+    {
+        int perStage = Math.max(1, config.maxConnections) / Math.max(1, config.parallelStages);
+        return Math.max(1, Math.min(config.pipelineWriters, perStage - 1));
+    }
+
+    /**
+     * Copies all rows of the source table into the existing target table with the same columns
+     *
+     * @return the amount of rows copied
+     */
+    public long copy(Connection source, String sourceTable, Database target, String targetTable) throws SQLException
+    {
+        return copy(source, sourceTable, null, target, targetTable);
+    }
+
+    /**
+     * Copies the rows of the source table matching the condition. Target rows with the same key are replaced.
+     *
+     * @param sourceTable the source table optionally followed by an alias used in the condition
+     * @param condition the condition or null to copy all rows into an empty table
+     * @return the amount of rows copied
+     */
+    public long copy(Connection source, String sourceTable, String condition, Database target, String targetTable) throws SQLException
+    {
+        String insert = condition == null ? "INSERT INTO " : "REPLACE INTO ";
+        BlockingQueue<List<Object[]>> queue = new ArrayBlockingQueue<>(queueSize);
+        AtomicInteger threadId = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(writers,
+                r -> new Thread(r, "CubeEngine-DbMigration-Writer-" + threadId.incrementAndGet()));
+        List<Future<?>> futures = new ArrayList<>();
+        try (Statement select = ctx.getProgress().track(source.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)))
+        {
+            // Makes the MySQL driver stream the rows instead of loading the whole table
+            select.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet rs = select.executeQuery("SELECT * FROM " + sourceTable + (condition == null ? "" : " WHERE " + condition)))
+            {
+                int columns = rs.getMetaData().getColumnCount();
+                for (int i = 0; i < writers; i++)
+                {
+                    futures.add(pool.submit(() -> write(target, insert + targetTable, columns, queue)));
+                }
+                read(rs, columns, queue);
+            }
+            finally
+            {
+                readerDone = true;
+                ctx.getProgress().untrack(select);
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+        }
+        catch (SQLException | RuntimeException e)
+        {
+            failure.compareAndSet(null, e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, new CancellationException("Interrupted"));
+        }
+        catch (ExecutionException e)
+        {
+            failure.compareAndSet(null, e.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof SQLException)
+        {
+            throw (SQLException) t;
+        }
+        if (t instanceof RuntimeException)
+        {
+            throw (RuntimeException) t;
+        }
+        if (t != null)
+        {
+            throw new SQLException("Copying " + sourceTable + " failed", t);
+        }
+        return written.get();
+    }
+
+    private void read(ResultSet rs, int columns, BlockingQueue<List<Object[]>> queue) throws SQLException, InterruptedException
+    {
+        List<Object[]> batch = new ArrayList<>(batchSize);
+        while (rs.next())
+        {
+            Object[] row = new Object[columns];
+            for (int i = 0; i < columns; i++)
+            {
+                row[i] = rs.getObject(i + 1);
+            }
+            batch.add(row);
+            if (batch.size() == batchSize)
+            {
+                put(queue, batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty())
+        {
+            put(queue, batch);
+        }
+    }
+
+    private void put(BlockingQueue<List<Object[]>> queue, List<Object[]> batch) throws InterruptedException
+    {
+        while (!queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS))
+        {
+            checkFailed();
+        }
+        checkFailed();
+    }
+
+    private void checkFailed()
+    {
+        ctx.getProgress().checkCancelled();
+        if (failure.get() != null)
+        {
+            throw new CancellationException("A writer failed");
+        }
+    }
+
+    /**
+     * @param into the INSERT or REPLACE INTO clause with the target table
+     */
+    private Void write(Database target, String into, int columns, BlockingQueue<List<Object[]>> queue) throws Exception
+    {
+        int rowsPerStatement = Math.max(1, Math.min(batchSize, MAX_PARAMETERS / columns));
+        try (Connection conn = target.getConnection())
+        {
+            conn.setAutoCommit(false);
+            PreparedStatement full = null;
+            try
+            {
+                while (true)
+                {
+                    List<Object[]> batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (batch == null)
+                    {
+                        if (readerDone && queue.isEmpty())
+                        {
+                            return null;
+                        }
+                        checkFailed();
+                        continue;
+                    }
+                    checkFailed();
+                    for (int from = 0; from < batch.size(); from += rowsPerStatement)
+                    {
+                        int rows = Math.min(rowsPerStatement, batch.size() - from);
+                        if (rows == rowsPerStatement)
+                        {
+                            if (full == null)
+                            {
+                                full = conn.prepareStatement(insert(into, columns, rows));
+                            }
+                            insert(full, batch, from, rows, columns);
+                        }
+                        else
+                        {
+                            try (PreparedStatement partial = conn.prepareStatement(insert(into, columns, rows)))
+                            {
+                                insert(partial, batch, from, rows, columns);
+                            }
+                        }
+                    }
+                    conn.commit();
+                    written.addAndGet(batch.size());
+                }
+            }
+            catch (Exception e)
+            {
+                failure.compareAndSet(null, e);
+                conn.rollback();
+                throw e;
+            }
+            finally
+            {
+                if (full != null)
+                {
+                    full.close();
+                }
+            }
+        }
+    }
+
+    private static void insert(PreparedStatement stmt, List<Object[]> batch, int from, int rows, int columns) throws SQLException
+    {
+        int param = 1;
+        for (int i = from; i < from + rows; i++)
+        {
+            for (Object value : batch.get(i))
+            {
+                stmt.setObject(param++, value);
+            }
+        }
+        stmt.executeUpdate();
+    }
+
+    private static String insert(String into, int columns, int rows)
+    {
+        StringBuilder row = new StringBuilder("(?");
+        for (int i = 1; i < columns; i++)
+        {
+            row.append(", ?");
+        }
+        row.append(")");
+        StringBuilder sql = new StringBuilder(into).append(" VALUES ").append(row);
+        for (int i = 1; i < rows; i++)
+        {
+            sql.append(", ").append(row);
+        }
+        return sql.toString();
+    }
+}
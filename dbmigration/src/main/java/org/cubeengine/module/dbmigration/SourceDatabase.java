@@ -0,0 +1,70 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import org.cubeengine.libcube.service.database.Database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * The database holding the old tables.
+ * <p>This is the target database unless a separate source-url is configured.
+ * Separate source connections are not pooled.
+ */
+public class SourceDatabase
+{
+    private final MigrationConfig config;
+    private final Database target;
+
+    public SourceDatabase(MigrationConfig config, Database target)
+    {
+        this.config = config;
+        this.target = target;
+    }
+
+    /**
+     * @return whether the old tables are in a different database than the new ones
+     */
+    public boolean isSeparate()
+    {
+        return config.sourceUrl != null && !config.sourceUrl.isEmpty();
+    }
+
+    public Connection getConnection() throws SQLException
+    {
+        if (isSeparate())
+        {
+            return DriverManager.getConnection(config.sourceUrl, config.sourceUser, config.sourcePassword);
+        }
+        return target.getConnection();
+    }
+
+    /**
+     * @return whether the table exists in the database of given connection
+     */
+    public static boolean hasTable(Connection conn, String table) throws SQLException
+    {
+        try (ResultSet rs = conn.getMetaData().getTables(conn.getCatalog(), null, table, new String[]{"TABLE"}))
+        {
+            return rs.next();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import org.cubeengine.libcube.service.database.Database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToLongFunction;
+
+/**
+ * Runs {@link MigrationStage}s in parallel while respecting their dependencies.
+ * <p>Every stage gets its own connection from the database pool.
+ * When a stage fails all other running stages are aborted.
+ * Stages recorded as done in the {@link MigrationJournal} are skipped.
+ */
+public class StageScheduler
+{
+    private final Database db;
+    private final MigrationContext ctx;
+    private final Map<String, MigrationStage> stages = new LinkedHashMap<>();
+    private final Map<String, String> sourceStages = new HashMap<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public StageScheduler(Database db, MigrationContext ctx)
+    {
+        this.db = db;
+        this.ctx = ctx;
+    }
+
+    public StageScheduler add(MigrationStage stage)
+    {
+        if (stages.putIfAbsent(stage.getName(), stage) != null)
+        {
+            throw new IllegalArgumentException("Duplicate stage " + stage.getName());
+        }
+        return this;
+    }
+
+    /**
+     * Adds a stage providing an old table. All stages reading the table depend on it.
+     */
+    public StageScheduler addSource(String table, MigrationStage stage)
+    {
+        this.add(stage);
+        this.sourceStages.put(table, stage.getName());
+        return this;
+    }
+
+    private Set<String> getDependencies(MigrationStage stage)
+    {
+        if (sourceStages.isEmpty())
+        {
+            return stage.getDependencies();
+        }
+        Set<String> dependencies = new LinkedHashSet<>(stage.getDependencies());
+        for (String table : stage.getSourceTables())
+        {
+            String source = sourceStages.get(table);
+            if (source != null && !source.equals(stage.getName()))
+            {
+                dependencies.add(source);
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * Runs all stages and blocks until they are done
+     *
+     * @param threads the maximum amount of stages running at the same time
+     */
+    public void run(int threads) throws SQLException
+    {
+        AtomicInteger threadId = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads),
+                r -> new Thread(r, "CubeEngine-DbMigration-Stage-" + threadId.incrementAndGet()));
+        try
+        {
+            Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+            for (MigrationStage stage : stages.values())
+            {
+                schedule(stage, futures, new HashSet<>(), pool);
+            }
+            CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[futures.size()])).join();
+        }
+        catch (CompletionException ignore)
+        {
+            // the first failure is rethrown below
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof SQLException)
+        {
+            throw (SQLException) t;
+        }
+        if (t instanceof RuntimeException)
+        {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error)
+        {
+            throw (Error) t;
+        }
+    }
+
+    /**
+     * Calculates the duration of the longest dependency chain.
+     * Disabled stages take no time.
+     *
+     * @param duration the estimated duration of a single enabled stage
+     * @return the estimated duration of all stages run with enough threads
+     */
+    public long estimate(ToLongFunction<MigrationStage> duration)
+    {
+        Map<String, Long> finished = new HashMap<>();
+        long total = 0;
+        for (MigrationStage stage : stages.values())
+        {
+            total = Math.max(total, estimate(stage, duration, finished));
+        }
+        return total;
+    }
+
+    private long estimate(MigrationStage stage, ToLongFunction<MigrationStage> duration, Map<String, Long> finished)
+    {
+        Long done = finished.get(stage.getName());
+        if (done != null)
+        {
+            return done;
+        }
+        long start = 0;
+        for (String dependency : getDependencies(stage))
+        {
+            start = Math.max(start, estimate(stages.get(dependency), duration, finished));
+        }
+        long end = start + (stage.isEnabled(ctx) ? duration.applyAsLong(stage) : 0);
+        finished.put(stage.getName(), end);
+        return end;
+    }
+
+    public Collection<MigrationStage> getStages()
+    {
+        return stages.values();
+    }
+
+    private CompletableFuture<Void> schedule(MigrationStage stage, Map<String, CompletableFuture<Void>> futures,
+                                             Set<String> visiting, ExecutorService pool)
+    {
+        CompletableFuture<Void> future = futures.get(stage.getName());
+        if (future != null)
+        {
+            return future;
+        }
+        if (!visiting.add(stage.getName()))
+        {
+            throw new IllegalStateException("Cyclic dependency on stage " + stage.getName());
+        }
+        Set<String> stageDependencies = getDependencies(stage);
+        CompletableFuture[] dependencies = new CompletableFuture[stageDependencies.size()];
+        int i = 0;
+        for (String dependency : stageDependencies)
+        {
+            MigrationStage depStage = stages.get(dependency);
+            if (depStage == null)
+            {
+                throw new IllegalStateException("Stage " + stage.getName() + " depends on unknown stage " + dependency);
+            }
+            dependencies[i++] = schedule(depStage, futures, visiting, pool);
+        }
+        visiting.remove(stage.getName());
+
+        future = CompletableFuture.allOf(dependencies).thenRunAsync(() -> runStage(stage), pool);
+        futures.put(stage.getName(), future);
+        return future;
+    }
+
+    private void runStage(MigrationStage stage)
+    {
+        if (!stage.isEnabled(ctx))
+        {
+            ctx.getLogger().info("Skipping {}", stage.getName());
+            return;
+        }
+        if (ctx.getJournal().isStageDone(stage.getName()))
+        {
+            ctx.getLogger().info("{} was already migrated", stage.getName());
+            return;
+        }
+        ctx.getLogger().info("migrate {}...", stage.getName());
+        MigrationReport.StageReport report = ctx.getReport().stage(stage.getName());
+        try
+        {
+            ctx.getProgress().stageStarted(stage.getName());
+            report.start();
+            long waitStart = System.currentTimeMillis();
+            try (Connection conn = db.getConnection())
+            {
+                report.connectionWait(System.currentTimeMillis() - waitStart);
+                stage.migrate(ctx, conn);
+                ctx.getJournal().stageDone(conn, stage.getName());
+            }
+            report.finish();
+            ctx.getProgress().stageDone(stage.getName());
+        }
+        catch (Throwable t)
+        {
+            if (failure.compareAndSet(null, t))
+            {
+                ctx.getLogger().error(t, "Stage {} failed!", stage.getName());
+                ctx.getProgress().abort(t);
+            }
+            throw new CompletionException(t);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+/**
+ * A fixed size buffer of old numeric keys and their UUID stored in primitive arrays.
+ * <p>Uses 24 bytes per entry instead of a boxed Long, a UUID and a map entry.
+ */
+public class UUIDKeyBuffer
+{
+    private final long[] keys;
+    private final long[] most;
+    private final long[] least;
+    private int size = 0;
+
+    public UUIDKeyBuffer(int capacity)
+    {
+        this.keys = new long[capacity];
+        this.most = new long[capacity];
+        this.least = new long[capacity];
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    public boolean add(long key, long mostSigBits, long leastSigBits)
+    {
+        if (isFull())
+        {
+            return false;
+        }
+        keys[size] = key;
+        most[size] = mostSigBits;
+        least[size] = leastSigBits;
+        size++;
+        return true;
+    }
+
+    public long getKey(int index)
+    {
+        return keys[index];
+    }
+
+    public long getMostSigBits(int index)
+    {
+        return most[index];
+    }
+
+    public long getLeastSigBits(int index)
+    {
+        return least[index];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int capacity()
+    {
+        return keys.length;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public boolean isFull()
+    {
+        return size == keys.length;
+    }
+
+    public void clear()
+    {
+        size = 0;
+    }
+}
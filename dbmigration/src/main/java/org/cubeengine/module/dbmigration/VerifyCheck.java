@@ -0,0 +1,109 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+/**
+ * Compares the old rows of a table with the migrated rows in key ranges.
+ * <p>Both sides select the same columns in the same format and are keyed by the same old key,
+ * so the target side usually joins the helper tables to map the new ids back to the old keys.
+ * Each range is compared by its row count and the sum of the CRC32 of every row, which does not depend on the row order.
+ */
+public class VerifyCheck
+{
+    private final String name;
+    private Side source;
+    private Side target;
+
+    public VerifyCheck(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * @param key     the old key to split the rows into ranges
+     * @param from    the FROM part of the query. It has to end with a WHERE clause
+     * @param columns the compared columns
+     */
+    public VerifyCheck source(String key, String from, String... columns)
+    {
+        this.source = new Side(key, from, columns);
+        return this;
+    }
+
+    /**
+     * @see #source(String, String, String...)
+     */
+    public VerifyCheck target(String key, String from, String... columns)
+    {
+        this.target = new Side(key, from, columns);
+        return this;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Side getSource()
+    {
+        return source;
+    }
+
+    public Side getTarget()
+    {
+        return target;
+    }
+
+    public static class Side
+    {
+        private final String key;
+        private final String from;
+        private final String[] columns;
+
+        private Side(String key, String from, String[] columns)
+        {
+            this.key = key;
+            this.from = from;
+            this.columns = columns;
+        }
+
+        /**
+         * @return the query selecting the lowest and highest key
+         */
+        public String bounds()
+        {
+            return "SELECT MIN(" + key + "), MAX(" + key + ") FROM " + from;
+        }
+
+        /**
+         * @return the query selecting row count and checksum of a key range
+         */
+        public String checksum()
+        {
+            StringBuilder row = new StringBuilder("CONCAT_WS('|'");
+            for (String column : columns)
+            {
+                // CONCAT_WS skips NULL so it is replaced to keep the position of the other columns
+                row.append(", IFNULL(").append(column).append(", 'NULL')");
+            }
+            row.append(")");
+            return "SELECT COUNT(*), COALESCE(SUM(CRC32(" + row + ")), 0) FROM " + from
+                + " AND " + key + " > ? AND " + key + " <= ?";
+        }
+    }
+}
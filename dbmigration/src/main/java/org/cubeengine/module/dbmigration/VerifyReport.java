@@ -0,0 +1,121 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of a verification written as JSON. Only ranges that differ are listed.
+ */
+public class VerifyReport
+{
+    public static final String FILE = "migration-verify.json";
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private String status = "running";
+    private long started = System.currentTimeMillis();
+    private long durationMillis;
+    private int mismatches;
+    private final Map<String, CheckReport> checks = new LinkedHashMap<>();
+
+    public synchronized CheckReport check(String name)
+    {
+        return checks.computeIfAbsent(name, k -> new CheckReport());
+    }
+
+    public synchronized int getMismatches()
+    {
+        return mismatches;
+    }
+
+    public synchronized void finish(String status)
+    {
+        this.status = status;
+        this.durationMillis = System.currentTimeMillis() - started;
+        this.mismatches = 0;
+        for (CheckReport check : checks.values())
+        {
+            this.mismatches += check.mismatches.size();
+        }
+    }
+
+    public synchronized void write(Path file) throws IOException
+    {
+        Files.createDirectories(file.getParent());
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            GSON.toJson(this, writer);
+        }
+    }
+
+    public static class CheckReport
+    {
+        private int ranges;
+        private long sourceRows;
+        private long targetRows;
+        private final List<Mismatch> mismatches = new ArrayList<>();
+
+        public synchronized void ranges(int ranges)
+        {
+            this.ranges = ranges;
+        }
+
+        public synchronized void checked(long sourceRows, long targetRows)
+        {
+            this.sourceRows += sourceRows;
+            this.targetRows += targetRows;
+        }
+
+        public synchronized void mismatch(long from, long to, long sourceRows, long targetRows, String sourceChecksum, String targetChecksum)
+        {
+            this.mismatches.add(new Mismatch(from, to, sourceRows, targetRows, sourceChecksum, targetChecksum));
+        }
+    }
+
+    private static class Mismatch
+    {
+        private final long from;
+        private final long to;
+        private final long sourceRows;
+        private final long targetRows;
+        private final String sourceChecksum;
+        private final String targetChecksum;
+
+        private Mismatch(long from, long to, long sourceRows, long targetRows, String sourceChecksum, String targetChecksum)
+        {
+            this.from = from;
+            this.to = to;
+            this.sourceRows = sourceRows;
+            this.targetRows = targetRows;
+            this.sourceChecksum = sourceChecksum;
+            this.targetChecksum = targetChecksum;
+        }
+    }
+}
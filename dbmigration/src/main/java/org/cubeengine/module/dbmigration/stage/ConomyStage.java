@@ -0,0 +1,143 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.stage;
+
+import static org.cubeengine.module.conomy.storage.TableAccount.TABLE_ACCOUNT;
+import static org.cubeengine.module.conomy.storage.TableBalance.TABLE_BALANCE;
+
+import org.cubeengine.module.conomy.Conomy;
+import org.cubeengine.module.dbmigration.Delta;
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.MigrationStage;
+import org.cubeengine.module.dbmigration.VerifyCheck;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Migrates player accounts and their balance
+ */
+public class ConomyStage extends MigrationStage
+{
+    public ConomyStage()
+    {
+        super("conomy", UUIDMappingStage.USERS);
+    }
+
+    @Override
+    public boolean isEnabled(MigrationContext ctx)
+    {
+        return ctx.getModuleManager().getModule(Conomy.class) != null;
+    }
+
+    @Override
+    public List<String> getSourceTables()
+    {
+        return Arrays.asList("accounts", "accounts");
+    }
+
+    // OLD cube_account_access: empty
+
+    // OLD accounts: key, user_id(user table), name, value, mask (1=hidden 2=needsinvite)
+    // NEW conomy_account id(uuid), name, mask (same + 4=uuid for players)
+    // NEW conomy_balance id(uuid), currency, context, balance
+    @Override
+    public List<VerifyCheck> getChecks(MigrationContext ctx)
+    {
+        String oldPrefix = ctx.getConfig().prefix;
+        String mainPrefix = ctx.getMainPrefix();
+        String defCurrency = ((Conomy) ctx.getModuleManager().getModule(Conomy.class)).getConfig().defaultCurrency;
+        return Arrays.asList(
+            new VerifyCheck("accounts")
+                .source("ac.user_id", oldPrefix + "accounts as ac "
+                            + "JOIN " + oldPrefix + "user as ou ON ou.`key` = ac.user_id "
+                            + "WHERE 1 = 1",
+                        "ac.user_id", "ou.lastname", "ac.mask & 1 = 1", "ac.mask & 2 = 2")
+                .target("u.ID", "`" + mainPrefix + TABLE_ACCOUNT.getName() + "` as a "
+                            + "JOIN " + ctx.getUserUUIDTable() + " as u ON u.UUID = a.id "
+                            + "WHERE a.IS_UUID = true",
+                        "u.ID", "a.name", "a.HIDDEN", "a.INVITE"),
+            new VerifyCheck("balances")
+                .source("ac.user_id", oldPrefix + "accounts as ac "
+                            + "JOIN " + oldPrefix + "user as ou ON ou.`key` = ac.user_id "
+                            + "WHERE 1 = 1",
+                        "ac.user_id", "ac.value")
+                .target("u.ID", "`" + mainPrefix + TABLE_BALANCE.getName() + "` as b "
+                            + "JOIN " + ctx.getUserUUIDTable() + " as u ON u.UUID = b.id "
+                            + "WHERE b.currency = '" + defCurrency + "' AND b.context = 'global|'",
+                        "u.ID", "b.balance"));
+    }
+
+    @Override
+    public Map<String, Delta> getDeltas(MigrationContext ctx)
+    {
+        String balances = "`" + ctx.getMainPrefix() + TABLE_BALANCE.getName() + "`";
+        String defCurrency = ((Conomy) ctx.getModuleManager().getModule(Conomy.class)).getConfig().defaultCurrency;
+        Map<String, Delta> deltas = new LinkedHashMap<>();
+        deltas.put("accounts", Delta.newRows("accounts", "ac.`key`", "ON DUPLICATE KEY UPDATE id = id"));
+        // The old accounts have no timestamp so the balances are compared with the migrated ones
+        deltas.put("balances", Delta.changed("NOT EXISTS (SELECT 1 FROM " + balances + " as b "
+                                                 + "WHERE b.id = u.UUID AND b.currency = '" + defCurrency + "' "
+                                                 + "AND b.context = 'global|' AND b.balance = ac.value)",
+                                             "ON DUPLICATE KEY UPDATE balance = VALUES(balance)"));
+        return deltas;
+    }
+
+    @Override
+    public void migrate(MigrationContext ctx, Connection conn) throws SQLException
+    {
+        // INFO: This does not handle bank accounts
+        String mainPrefix = ctx.getMainPrefix();
+        String oldPrefix = ctx.getOldPrefix();
+        Map<String, Delta> deltas = getDeltas(ctx);
+        try (Statement stmt = statement(ctx, conn))
+        {
+            if (clearTarget(ctx)) // Clear current data?
+            {
+                stmt.execute("DELETE FROM " + mainPrefix + TABLE_ACCOUNT.getName());
+            }
+            // Migrate Player Accounts
+            copy(ctx, conn, stmt, "accounts", "accounts", "ac", "`key`",
+                 "INSERT INTO `" + mainPrefix + TABLE_ACCOUNT.getName() + "` "
+                    + "(id, name, HIDDEN, INVITE, IS_UUID)"
+                    + " SELECT u.UUID, ou.lastname, ac.mask & 1 = 1, ac.mask & 2 = 2, true"
+                    + " FROM " + ctx.getUserUUIDTable() + " as u, "
+                    + oldPrefix + "user as ou,"
+                    + oldPrefix + "accounts as ac "
+                    + "WHERE ac.user_id = ou.`key`"
+                    + "AND ac.user_id = u.ID",
+                 deltas.get("accounts"));
+            // Migrate Player Account balance
+            String defCurrency = ((Conomy) ctx.getModuleManager().getModule(Conomy.class)).getConfig().defaultCurrency;
+            copy(ctx, conn, stmt, "balances", "accounts", "ac", "`key`",
+                 "INSERT INTO `" + mainPrefix + TABLE_BALANCE.getName() + "` "
+                    + "(id, currency, context, balance)"
+                    + " SELECT u.UUID, '" + defCurrency +"', 'global|', ac.value"
+                    + " FROM " + ctx.getUserUUIDTable() + " as u, "
+                    + oldPrefix + "accounts as ac "
+                    + "WHERE ac.user_id = u.ID",
+                 deltas.get("balances"));
+            // Done!
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.stage;
+
+import static org.cubeengine.module.locker.storage.TableAccessList.TABLE_ACCESSLIST;
+
+import org.cubeengine.module.dbmigration.Delta;
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.VerifyCheck;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies the global and per lock access lists
+ * <p>The old entries have no timestamp, so a delta migration only copies new entries.
+ * Changed levels and removed entries of already migrated entries are not carried over.
+ */
+public class LockAccessStage extends LockerStage
+{
+    public LockAccessStage()
+    {
+        super(ACCESSLIST, LOCKS);
+    }
+
+    @Override
+    public List<String> getSourceTables()
+    {
+        return Arrays.asList("lockaccesslist", "lockaccesslist");
+    }
+
+    @Override
+    public List<VerifyCheck> getChecks(MigrationContext ctx)
+    {
+        String oldPrefix = ctx.getConfig().prefix;
+        String accessList = "`" + ctx.getMainPrefix() + TABLE_ACCESSLIST.getName() + "`";
+        String tableUserUUIDs = ctx.getUserUUIDTable();
+        return Arrays.asList(
+            new VerifyCheck("global lockaccess")
+                .source("al.user_id", oldPrefix + "lockaccesslist as al "
+                            + "JOIN " + oldPrefix + "user as ou1 ON ou1.`key` = al.user_id "
+                            + "JOIN " + oldPrefix + "user as ou2 ON ou2.`key` = al.owner_id "
+                            + "WHERE al.owner_id IS NOT NULL",
+                        "al.user_id", "al.owner_id", "al.level")
+                .target("u1.ID", accessList + " as a "
+                            + "JOIN " + tableUserUUIDs + " as u1 ON u1.UUID = a.user_id "
+                            + "JOIN " + tableUserUUIDs + " as u2 ON u2.UUID = a.owner_id "
+                            + "WHERE a.lock_id IS NULL",
+                        "u1.ID", "u2.ID", "a.level"),
+            new VerifyCheck("block lockaccess")
+                .source("al.lock_id", oldPrefix + "lockaccesslist as al "
+                            + "JOIN " + oldPrefix + "locks as l ON l.id = al.lock_id "
+                            + "JOIN " + oldPrefix + "user as lo ON lo.`key` = l.owner_id "
+                            + "LEFT JOIN " + oldPrefix + "user as ou ON ou.`key` = al.user_id "
+                            + "WHERE l.entity_uid_least IS NULL",
+                        "al.lock_id", "ou.`key`", "al.level")
+                .target("m.OLD_ID", accessList + " as a "
+                            + "JOIN " + ctx.getLockIdTable() + " as m ON m.NEW_ID = a.lock_id "
+                            + "LEFT JOIN " + tableUserUUIDs + " as u1 ON u1.UUID = a.user_id "
+                            + "WHERE 1 = 1",
+                        "m.OLD_ID", "u1.ID", "a.level"));
+    }
+
+    @Override
+    public Map<String, Delta> getDeltas(MigrationContext ctx)
+    {
+        String accessList = "`" + ctx.getMainPrefix() + TABLE_ACCESSLIST.getName() + "`";
+        Map<String, Delta> deltas = new LinkedHashMap<>();
+        // Skips the entries a full migration copied after reading its mark
+        deltas.put("global lockaccess", Delta.newRows("lockaccesslist", "al.id")
+            .and("NOT EXISTS (SELECT 1 FROM " + accessList + " as a "
+                     + "WHERE a.lock_id IS NULL AND a.user_id = u1.UUID AND a.owner_id = u2.UUID)"));
+        deltas.put("block lockaccess", Delta.newRows("lockaccesslist", "al.id")
+            .and("NOT EXISTS (SELECT 1 FROM " + accessList + " as a "
+                     + "WHERE a.lock_id = m.NEW_ID AND a.user_id <=> u1.UUID)"));
+        return deltas;
+    }
+
+    @Override
+    public void migrate(MigrationContext ctx, Connection conn) throws SQLException
+    {
+        String mainPrefix = ctx.getMainPrefix();
+        String tableUserUUIDs = ctx.getUserUUIDTable();
+        Map<String, Delta> deltas = getDeltas(ctx);
+        try (Statement stmt = statement(ctx, conn))
+        {
+            // Copy Lock AccessList
+            // First global
+            copy(ctx, conn, stmt, "global lockaccess", "lockaccesslist", "al", "id",
+                 "INSERT INTO `" + mainPrefix +TABLE_ACCESSLIST.getName() + "` "
+                    + "(user_id, lock_id, level, owner_id) "
+                    + "SELECT u1.UUID, NULL, al.level, u2.UUID "
+                    + "FROM " + tableUserUUIDs + " as u1, "
+                    +           tableUserUUIDs + " as u2, "
+                    + ctx.getOldPrefix() + "lockaccesslist as al "
+                    + "WHERE u1.ID = al.user_id "
+                    + "AND u2.ID = al.owner_id "
+                    + "AND al.owner_id IS NOT NULL",
+                 deltas.get("global lockaccess"));
+
+            // Then single locks
+            copy(ctx, conn, stmt, "block lockaccess", "lockaccesslist", "al", "id",
+                 "INSERT INTO `" + mainPrefix +TABLE_ACCESSLIST.getName() + "` "
+                    + "(user_id, lock_id, level, owner_id) "
+                    + "SELECT u1.UUID, m.NEW_ID, al.level, NULL "
+                    + "FROM " + ctx.getOldPrefix() + "lockaccesslist as al "
+                    + "JOIN " + ctx.getLockIdTable() + " as m ON m.OLD_ID = al.lock_id "
+                    + "LEFT JOIN " + tableUserUUIDs + " as u1 ON u1.ID = al.user_id "
+                    + "WHERE al.lock_id IS NOT NULL",
+                 deltas.get("block lockaccess"));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.stage;
+
+import static org.cubeengine.module.locker.storage.TableLockLocations.TABLE_LOCK_LOCATIONS;
+
+import org.cubeengine.module.dbmigration.Delta;
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.VerifyCheck;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies the lock locations of the already copied locks
+ */
+public class LockLocationStage extends LockerStage
+{
+    public LockLocationStage()
+    {
+        super(LOCATIONS, LOCKS, UUIDMappingStage.WORLDS);
+    }
+
+    @Override
+    public List<String> getSourceTables()
+    {
+        return Arrays.asList("locklocation");
+    }
+
+    @Override
+    public List<VerifyCheck> getChecks(MigrationContext ctx)
+    {
+        String oldPrefix = ctx.getConfig().prefix;
+        return Arrays.asList(
+            new VerifyCheck("locklocation")
+                .source("ll.lock_id", oldPrefix + "locklocation as ll "
+                            + "JOIN " + oldPrefix + "locks as l ON l.id = ll.lock_id "
+                            + "JOIN " + oldPrefix + "user as ou ON ou.`key` = l.owner_id "
+                            + "JOIN " + oldPrefix + "worlds as ow ON ow.`key` = ll.world_id "
+                            + "WHERE l.entity_uid_least IS NULL",
+                        "ll.lock_id", "ll.world_id", "ll.x", "ll.y", "ll.z", "ll.chunkX", "ll.chunkZ")
+                .target("m.OLD_ID", "`" + ctx.getMainPrefix() + TABLE_LOCK_LOCATIONS.getName() + "` as nll "
+                            + "JOIN " + ctx.getLockIdTable() + " as m ON m.NEW_ID = nll.lock_id "
+                            + "JOIN " + ctx.getWorldUUIDTable() + " as w ON w.UUID = nll.world_id "
+                            + "WHERE 1 = 1",
+                        "m.OLD_ID", "w.ID", "nll.x", "nll.y", "nll.z", "nll.chunkX", "nll.chunkZ"));
+    }
+
+    @Override
+    public Map<String, Delta> getDeltas(MigrationContext ctx)
+    {
+        Map<String, Delta> deltas = new LinkedHashMap<>();
+        // Skips the locations a full migration copied after reading its mark
+        deltas.put("locklocation", Delta.newRows("locklocation", "ll.id")
+            .and("NOT EXISTS (SELECT 1 FROM `" + ctx.getMainPrefix() + TABLE_LOCK_LOCATIONS.getName() + "` as nll "
+                     + "WHERE nll.lock_id = m.NEW_ID AND nll.world_id = w.UUID "
+                     + "AND nll.x = ll.x AND nll.y = ll.y AND nll.z = ll.z)"));
+        return deltas;
+    }
+
+    @Override
+    public void migrate(MigrationContext ctx, Connection conn) throws SQLException
+    {
+        String mainPrefix = ctx.getMainPrefix();
+        Map<String, Delta> deltas = getDeltas(ctx);
+        try (Statement stmt = statement(ctx, conn))
+        {
+            copy(ctx, conn, stmt, "locklocation", "locklocation", "ll", "id",
+                 "INSERT INTO `" + mainPrefix +TABLE_LOCK_LOCATIONS.getName() + "` "
+                    + "(world_id, x,y,z, chunkX, chunkZ, lock_id) "
+                    + "SELECT w.UUID, ll.x, ll.y, ll.z, ll.chunkX, ll.chunkZ, m.NEW_ID "
+                    + "FROM " + ctx.getOldPrefix() + "locklocation as ll "
+                    + "JOIN " + ctx.getWorldUUIDTable() + " as w ON w.ID = ll.world_id "
+                    + "JOIN " + ctx.getLockIdTable() + " as m ON m.OLD_ID = ll.lock_id "
+                    + "WHERE ll.lock_id IS NOT NULL",
+                 deltas.get("locklocation"));
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.stage;
+
+import static org.cubeengine.module.locker.storage.TableAccessList.TABLE_ACCESSLIST;
+import static org.cubeengine.module.locker.storage.TableLockLocations.TABLE_LOCK_LOCATIONS;
+import static org.cubeengine.module.locker.storage.TableLocks.TABLE_LOCKS;
+
+import org.cubeengine.module.dbmigration.Delta;
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.VerifyCheck;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies the locks.
+ * <p>The new ids are assigned up front and kept in the lock id table,
+ * so the following locker stages can join on it instead of altering the locks table.
+ */
+public class LockStage extends LockerStage
+{
+    public LockStage()
+    {
+        super(LOCKS, UUIDMappingStage.USERS);
+    }
+
+    @Override
+    public List<String> getSourceTables()
+    {
+        return Arrays.asList("locks", "locks");
+    }
+
+    @Override
+    public List<VerifyCheck> getChecks(MigrationContext ctx)
+    {
+        return Arrays.asList(
+            new VerifyCheck("locks")
+                .source("l.id", ctx.getConfig().prefix + "locks as l "
+                            + "JOIN " + ctx.getConfig().prefix + "user as ou ON ou.`key` = l.owner_id "
+                            + "WHERE l.entity_uid_least IS NULL",
+                        "l.id", "l.owner_id", "l.flags", "l.type", "l.lock_type", "HEX(l.password)", "l.last_access", "l.created")
+                .target("m.OLD_ID", "`" + ctx.getMainPrefix() + TABLE_LOCKS.getName() + "` as nl "
+                            + "JOIN " + ctx.getLockIdTable() + " as m ON m.NEW_ID = nl.id "
+                            + "JOIN " + ctx.getUserUUIDTable() + " as u ON u.UUID = nl.owner_id "
+                            + "WHERE nl.entity_uuid IS NULL",
+                        "m.OLD_ID", "u.ID", "nl.flags", "nl.type", "nl.lock_type", "HEX(nl.password)", "nl.last_access", "nl.created"));
+    }
+
+    @Override
+    public Map<String, Delta> getDeltas(MigrationContext ctx)
+    {
+        Map<String, Delta> deltas = new LinkedHashMap<>();
+        // Keeps the ids of the locks a full migration mapped after reading its mark
+        deltas.put("lock ids", Delta.newRows("locks", "l.id", "ON DUPLICATE KEY UPDATE NEW_ID = NEW_ID"));
+        // Copies the locks mapped in this run and updates the already migrated locks that were used since
+        deltas.put("locks", Delta.changedSince("locks", "l.last_access", "ON DUPLICATE KEY UPDATE "
+            + "flags = VALUES(flags), type = VALUES(type), lock_type = VALUES(lock_type), "
+            + "password = VALUES(password), last_access = VALUES(last_access)").or("nl.id IS NULL"));
+        return deltas;
+    }
+
+    @Override
+    public void migrate(MigrationContext ctx, Connection conn) throws SQLException
+    {
+        String mainPrefix = ctx.getMainPrefix();
+        String oldLocks = ctx.getOldPrefix() + "locks";
+        String lockIds = ctx.getLockIdTable();
+        Map<String, Delta> deltas = getDeltas(ctx);
+        try (Statement stmt = statement(ctx, conn))
+        {
+            if (clearTarget(ctx))
+            {
+                stmt.execute("DELETE FROM " + mainPrefix +TABLE_ACCESSLIST.getName());
+                stmt.execute("DELETE FROM " + mainPrefix +TABLE_LOCK_LOCATIONS.getName());
+                stmt.execute("DELETE FROM " + mainPrefix +TABLE_LOCKS.getName());
+            }
+            if (isFirstRun(ctx) && !ctx.isDelta()) // A delta migration needs the ids of the already migrated locks
+            {
+                stmt.execute("DROP TABLE IF EXISTS " + lockIds);
+            }
+            if (isFirstRun(ctx))
+            {
+                stmt.execute("CREATE TABLE IF NOT EXISTS " + lockIds + " ("
+                        + "OLD_ID BIGINT NOT NULL,"
+                        + "NEW_ID BIGINT NOT NULL,"
+                        + "PRIMARY KEY (OLD_ID)"
+                        + ") ENGINE=InnoDB");
+            }
+
+            long[] reserved = {0, Long.MAX_VALUE};
+            if (!ctx.getJournal().isStepDone(getName(), "lock ids"))
+            {
+                reserved = reserveIds(ctx, conn, stmt, mainPrefix + TABLE_LOCKS.getName(), oldLocks,
+                                      ctx.isDelta() ? ctx.getMarks().get(getName(), "lock ids") : null);
+            }
+            copy(ctx, conn, stmt, "lock ids", "locks", "l", "id",
+                 "INSERT INTO " + lockIds + " (OLD_ID, NEW_ID) "
+                    + "SELECT l.id, l.id + " + reserved[0] + " "
+                    + "FROM " + oldLocks + " as l "
+                    + "JOIN " + ctx.getUserUUIDTable() + " as u ON u.ID = l.owner_id "
+                    + "WHERE l.entity_uid_least IS NULL "
+                    + "AND l.id <= " + reserved[1],
+                 deltas.get("lock ids"));
+            stmt.execute("ANALYZE TABLE " + lockIds);
+
+            // Copy Locks
+            copy(ctx, conn, stmt, "locks", "locks", "l", "id",
+                 "INSERT INTO `" + mainPrefix +TABLE_LOCKS.getName() + "` "
+                    + "(id, owner_id, flags, type, lock_type, password, entity_uuid, last_access, created) "
+                    + "SELECT m.NEW_ID, u.UUID, l.flags, l.type, l.lock_type, l.password, NULL, l.last_access, l.created "
+                    + "FROM " + lockIds + " as m "
+                    + "JOIN " + oldLocks + " as l ON l.id = m.OLD_ID "
+                    + "JOIN " + ctx.getUserUUIDTable() + " as u ON u.ID = l.owner_id "
+                    + "LEFT JOIN `" + mainPrefix + TABLE_LOCKS.getName() + "` as nl ON nl.id = m.NEW_ID "
+                    + "WHERE l.entity_uid_least IS NULL",
+                 deltas.get("locks"));
+        }
+    }
+
+    /**
+     * Shifts the old ids behind the existing locks and moves the AUTO_INCREMENT of the locks table past them,
+     * so locks created on the running server meanwhile never get one of the new ids.
+     * This keeps the order of the old locks.
+     * <p>The schema of the locks table is not altered. Instead the last lock of the range is inserted and rolled back.
+     * InnoDB moves its counter past an explicit id and never moves it back on a rollback.
+     *
+     * @param lastId the highest old id already mapped or null
+     * @return the offset to add to the old ids and the highest old id inside the reserved range
+     */
+    private static long[] reserveIds(MigrationContext ctx, Connection conn, Statement stmt,
+                                     String locks, String oldLocks, String lastId) throws SQLException
+    {
+        long minOld;
+        long maxOld;
+        try (ResultSet rs = stmt.executeQuery("SELECT MIN(id), MAX(id) FROM " + oldLocks
+                                                  + (lastId == null ? "" : " WHERE id > " + Long.parseLong(lastId))))
+        {
+            rs.next();
+            if (rs.getObject(1) == null)
+            {
+                return new long[]{0, Long.MAX_VALUE}; // nothing to copy
+            }
+            minOld = rs.getLong(1);
+            maxOld = rs.getLong(2);
+        }
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try
+        {
+            for (int attempt = 0; attempt < 3; attempt++)
+            {
+                long max;
+                try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM " + locks))
+                {
+                    rs.next();
+                    max = rs.getLong(1);
+                }
+                conn.commit();
+                long offset = max - (minOld - 1);
+                try
+                {
+                    // Any old lock has valid values for the placeholder
+                    stmt.executeUpdate("INSERT INTO " + locks + " "
+                        + "(id, owner_id, flags, type, lock_type, password, entity_uuid, last_access, created) "
+                        + "SELECT " + (maxOld + offset) + ", u.UUID, l.flags, l.type, l.lock_type, l.password, NULL, l.last_access, l.created "
+                        + "FROM " + oldLocks + " as l "
+                        + "JOIN " + ctx.getUserUUIDTable() + " as u ON u.ID = l.owner_id "
+                        + "LIMIT 1");
+                }
+                catch (SQLException e)
+                {
+                    if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) // not a lock created meanwhile with that id
+                    {
+                        throw e;
+                    }
+                }
+                conn.rollback();
+                // A lock created between reading the max id and inserting the placeholder took an id of the range
+                try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + locks
+                                                          + " WHERE id > " + max + " AND id <= " + (maxOld + offset)))
+                {
+                    rs.next();
+                    if (rs.getLong(1) == 0)
+                    {
+                        return new long[]{offset, maxOld};
+                    }
+                }
+                conn.commit();
+            }
+        }
+        catch (SQLException | RuntimeException e)
+        {
+            conn.rollback();
+            throw e;
+        }
+        finally
+        {
+            conn.setAutoCommit(autoCommit);
+        }
+        throw new SQLException("Could not reserve the ids for the old locks in " + locks);
+    }
+}
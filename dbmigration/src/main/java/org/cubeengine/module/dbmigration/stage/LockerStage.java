@@ -0,0 +1,50 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.stage;
+
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.MigrationStage;
+import org.cubeengine.module.locker.Locker;
+
+// OLD locks
+// NEW locker_locks
+// OLD lockaccesslist
+// NEW locker_accesslist
+// OLD locklocation
+// NEW locker_location
+
+/**
+ * Base for the locker stages. Locations and access lists depend on the locks being copied first.
+ */
+public abstract class LockerStage extends MigrationStage
+{
+    public static final String LOCKS = "locker_locks";
+    public static final String LOCATIONS = "locker_locations";
+    public static final String ACCESSLIST = "locker_accesslist";
+
+    protected LockerStage(String name, String... dependencies)
+    {
+        super(name, dependencies);
+    }
+
+    @Override
+    public boolean isEnabled(MigrationContext ctx)
+    {
+        return ctx.getModuleManager().getModule(Locker.class) != null;
+    }
+}
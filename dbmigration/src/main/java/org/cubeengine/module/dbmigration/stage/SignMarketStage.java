@@ -0,0 +1,320 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.stage;
+
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.MigrationJournal;
+import org.cubeengine.module.dbmigration.MigrationStage;
+import org.cubeengine.module.dbmigration.SourceDatabase;
+import org.spongepowered.api.data.DataContainer;
+import org.spongepowered.api.data.DataQuery;
+import org.spongepowered.api.data.DataView;
+import org.spongepowered.api.data.persistence.DataFormats;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+// OLD signmarketitem: key, stock, item, damageValue, customName, lore, enchantments, size
+// OLD signmarketblocks: key, world, x, y, z, signType, owner, itemKey, amount, demand, price
+// NEW signmarket/items-<key>.dat and signmarket/signs-<key>.dat
+
+/**
+ * Streams the old signmarket items and signs into gzipped NBT files in the module folder.
+ * <p>Both tables are read in pages of chunk-size rows and every page is written to its own file
+ * using {@link DataFormats#NBT}, so only a single page is ever held in memory. The files are named after the first key of the page
+ * and every page is checkpointed in the journal.
+ * <p>Items are kept as written by Bukkit (material name, damage value, enchantment names)
+ * as there is no signmarket module yet to convert them into Sponge item stacks.
+ */
+public class SignMarketStage extends MigrationStage
+{
+    private static final String ITEMS = "items";
+    private static final String SIGNS = "signs";
+
+    public SignMarketStage()
+    {
+        super("signmarket", UUIDMappingStage.USERS, UUIDMappingStage.WORLDS);
+    }
+
+    @Override
+    public List<String> getSourceTables()
+    {
+        return Arrays.asList("signmarketitem", "signmarketblocks");
+    }
+
+    @Override
+    public List<String> getOptionalSourceTables()
+    {
+        return getSourceTables();
+    }
+
+    @Override
+    public void migrate(MigrationContext ctx, Connection conn) throws SQLException
+    {
+        String oldPrefix = ctx.getOldPrefix();
+        if (!SourceDatabase.hasTable(conn, oldPrefix + "signmarketitem") || !SourceDatabase.hasTable(conn, oldPrefix + "signmarketblocks"))
+        {
+            ctx.getLogger().info("No signmarket tables found.");
+            return;
+        }
+        Path folder = ctx.getFolder().resolve("signmarket");
+        try
+        {
+            // The files are always written in full, so the pages of the last migration have to go even if old data is kept
+            if (isFirstRun(ctx))
+            {
+                clear(folder);
+            }
+            Files.createDirectories(folder);
+
+            stream(ctx, conn, folder, ITEMS, "Items", "i.`key`",
+                   "SELECT i.`key`, i.stock, i.item, i.damageValue, i.customName, i.lore, i.enchantments, i.size "
+                       + "FROM " + oldPrefix + "signmarketitem as i "
+                       + "WHERE 1 = 1", this::writeItem);
+
+            skipUnmapped(ctx, conn);
+            stream(ctx, conn, folder, SIGNS, "Signs", "b.`key`",
+                   "SELECT b.`key`, w.UUID as world, b.x, b.y, b.z, b.signType, u.UUID as owner, b.itemKey, b.amount, b.demand, b.price "
+                       + "FROM " + oldPrefix + "signmarketblocks as b "
+                       + "JOIN " + ctx.getWorldUUIDTable() + " as w ON w.ID = b.world "
+                       + "LEFT JOIN " + ctx.getUserUUIDTable() + " as u ON u.ID = b.owner "
+                       + "WHERE (b.owner IS NULL OR u.ID IS NOT NULL)", this::writeSign);
+        }
+        catch (IOException e)
+        {
+            throw new SQLException("Could not write the signmarket files", e);
+        }
+    }
+
+    private void stream(MigrationContext ctx, Connection conn, Path folder, String step, String listName, String key,
+                        String sql, RowWriter writer) throws SQLException, IOException
+    {
+        MigrationJournal journal = ctx.getJournal();
+        if (journal.isStepDone(getName(), step))
+        {
+            ctx.getLogger().info("{} already done", step);
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int pageSize = Math.max(1, ctx.getConfig().chunkSize);
+        Long checkpoint = journal.getCheckpoint(getName(), step);
+        long from = checkpoint == null ? Long.MIN_VALUE : checkpoint;
+        long total = 0;
+        try (PreparedStatement select = ctx.getProgress().track(conn.prepareStatement(
+                sql + " AND " + key + " > ? ORDER BY " + key + " LIMIT " + pageSize)))
+        {
+            select.setFetchSize(pageSize);
+            int cnt;
+            do
+            {
+                ctx.getProgress().checkCancelled();
+                select.setLong(1, from);
+                List<DataView> page = new ArrayList<>(pageSize);
+                long first = 0;
+                try (ResultSet rs = select.executeQuery())
+                {
+                    while (rs.next())
+                    {
+                        from = rs.getLong("key");
+                        if (page.isEmpty())
+                        {
+                            first = from;
+                        }
+                        page.add(writer.write(ctx, rs));
+                    }
+                }
+                cnt = page.size();
+                if (cnt == 0)
+                {
+                    break;
+                }
+                write(folder.resolve(step + "-" + first + ".dat"), listName, page);
+                journal.checkpoint(conn, getName(), step, from);
+                total += cnt;
+                ctx.getProgress().addRows(cnt);
+            }
+            while (cnt == pageSize);
+        }
+        journal.stepDone(conn, getName(), step);
+        ctx.getLogger().info(total + " signmarket " + step);
+        ctx.getProgress().report(getName(), step, total);
+        ctx.getReport().stage(getName()).step(step, total, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Signs in a world or of an owner without a mapping cannot be migrated. Counts them into the report.
+     * An owner that failed to map must not turn a player sign into an admin sign.
+     */
+    private void skipUnmapped(MigrationContext ctx, Connection conn) throws SQLException
+    {
+        if (ctx.getJournal().isStepDone(getName(), SIGNS))
+        {
+            return;
+        }
+        try (Statement stmt = statement(ctx, conn);
+             ResultSet rs = stmt.executeQuery("SELECT SUM(w.ID IS NULL), SUM(w.ID IS NOT NULL AND b.owner IS NOT NULL AND u.ID IS NULL) "
+                                                  + "FROM " + ctx.getOldPrefix() + "signmarketblocks as b "
+                                                  + "LEFT JOIN " + ctx.getWorldUUIDTable() + " as w ON w.ID = b.world "
+                                                  + "LEFT JOIN " + ctx.getUserUUIDTable() + " as u ON u.ID = b.owner"))
+        {
+            rs.next();
+            long worlds = rs.getLong(1);
+            long owners = rs.getLong(2);
+            if (worlds > 0)
+            {
+                ctx.getLogger().warn("Skipping {} signmarket signs in unknown worlds", worlds);
+                ctx.getReport().stage(getName()).skipped("signs in unknown worlds", worlds);
+            }
+            if (owners > 0)
+            {
+                ctx.getLogger().warn("Skipping {} signmarket signs of unknown owners", owners);
+                ctx.getReport().stage(getName()).skipped("signs of unknown owners", owners);
+            }
+        }
+    }
+
+    /**
+     * Writes a page atomically as a root compound with a single list of compounds
+     */
+    private static void write(Path file, String listName, List<DataView> page) throws IOException
+    {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream os = new GZIPOutputStream(Files.newOutputStream(tmp)))
+        {
+            DataFormats.NBT.writeTo(os, DataContainer.createNew().set(DataQuery.of(listName), page));
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private DataView writeItem(MigrationContext ctx, ResultSet rs) throws SQLException
+    {
+        long key = rs.getLong("key");
+        DataContainer item = DataContainer.createNew();
+        item.set(DataQuery.of("Key"), key);
+        int stock = rs.getInt("stock");
+        if (!rs.wasNull()) // no stock means infinite
+        {
+            item.set(DataQuery.of("Stock"), stock);
+        }
+        item.set(DataQuery.of("Material"), rs.getString("item"));
+        item.set(DataQuery.of("Damage"), rs.getShort("damageValue"));
+        String customName = rs.getString("customName");
+        if (customName != null)
+        {
+            item.set(DataQuery.of("CustomName"), customName);
+        }
+        String lore = rs.getString("lore");
+        if (lore != null && !lore.isEmpty())
+        {
+            item.set(DataQuery.of("Lore"), Arrays.asList(lore.split("\n")));
+        }
+        String enchantments = rs.getString("enchantments");
+        if (enchantments != null && !enchantments.isEmpty())
+        {
+            // name:level separated by , or ;
+            List<DataView> list = new ArrayList<>();
+            for (String entry : enchantments.split("[,;]"))
+            {
+                String[] parts = entry.split(":", 2);
+                short level = 1;
+                if (parts.length > 1)
+                {
+                    try
+                    {
+                        level = Short.parseShort(parts[1].trim());
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        ctx.getLogger().warn("Skipping the enchantment {} of signmarket item {}", entry, key);
+                        ctx.getReport().stage(getName()).skipped("enchantments", 1);
+                        continue;
+                    }
+                }
+                list.add(DataContainer.createNew()
+                                      .set(DataQuery.of("Name"), parts[0].trim())
+                                      .set(DataQuery.of("Level"), level));
+            }
+            item.set(DataQuery.of("Enchantments"), list);
+        }
+        item.set(DataQuery.of("Size"), rs.getByte("size"));
+        return item;
+    }
+
+    private DataView writeSign(MigrationContext ctx, ResultSet rs) throws SQLException
+    {
+        DataContainer sign = DataContainer.createNew();
+        sign.set(DataQuery.of("Key"), rs.getLong("key"));
+        sign.set(DataQuery.of("World"), rs.getString("world"));
+        sign.set(DataQuery.of("X"), rs.getInt("x"));
+        sign.set(DataQuery.of("Y"), rs.getInt("y"));
+        sign.set(DataQuery.of("Z"), rs.getInt("z"));
+        sign.set(DataQuery.of("Type"), rs.getBoolean("signType") ? "buy" : "sell");
+        String owner = rs.getString("owner");
+        if (owner != null) // no owner means admin sign. Unmapped owners are skipped
+        {
+            sign.set(DataQuery.of("Owner"), owner);
+        }
+        long item = rs.getLong("itemKey");
+        if (!rs.wasNull())
+        {
+            sign.set(DataQuery.of("Item"), item);
+        }
+        sign.set(DataQuery.of("Amount"), rs.getShort("amount"));
+        int demand = rs.getInt("demand");
+        if (!rs.wasNull())
+        {
+            sign.set(DataQuery.of("Demand"), demand);
+        }
+        sign.set(DataQuery.of("Price"), rs.getLong("price"));
+        return sign;
+    }
+
+    private static void clear(Path folder) throws IOException
+    {
+        if (!Files.isDirectory(folder))
+        {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*.dat*"))
+        {
+            for (Path file : files)
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface RowWriter
+    {
+        DataView write(MigrationContext ctx, ResultSet rs) throws SQLException;
+    }
+}
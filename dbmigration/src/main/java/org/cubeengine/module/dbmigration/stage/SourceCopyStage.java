@@ -0,0 +1,184 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.stage;
+
+import org.cubeengine.libcube.service.database.Database;
+import org.cubeengine.module.dbmigration.Delta;
+import org.cubeengine.module.dbmigration.DeltaMarks;
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.MigrationStage;
+import org.cubeengine.module.dbmigration.PipelinedCopy;
+import org.cubeengine.module.dbmigration.SourceDatabase;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Copies an old table from a separate source database into a staging table in the target database.
+ * <p>The stages reading the old table depend on this stage and read the staging table instead,
+ * so they can still join the old data with the helper tables.
+ * <p>A delta migration only copies the rows added or changed since the last copy into a kept staging table
+ * if every step reading the table has a mark column.
+ */
+public class SourceCopyStage extends MigrationStage
+{
+    public static final String PREFIX = "source:";
+
+    private final String table;
+    private final SourceDatabase source;
+    private final Database target;
+    private final boolean optional;
+    private final List<Delta> deltas;
+
+    /**
+     * @param optional whether a missing source table is skipped instead of failing the migration
+     * @param deltas the deltas of all steps reading the table sharing one alias or an empty list if it is always copied in full
+     */
+    public SourceCopyStage(String table, SourceDatabase source, Database target, boolean optional, List<Delta> deltas)
+    {
+        super(PREFIX + table);
+        this.table = table;
+        this.source = source;
+        this.target = target;
+        this.optional = optional;
+        this.deltas = deltas;
+    }
+
+    /**
+     * @return whether the staging table is kept after the migration for the next delta migration
+     */
+    public boolean isIncremental()
+    {
+        return !deltas.isEmpty();
+    }
+
+    @Override
+    public List<String> getSourceTables()
+    {
+        return Collections.singletonList(table);
+    }
+
+    @Override
+    public void migrate(MigrationContext ctx, Connection conn) throws SQLException
+    {
+        String sourceTable = ctx.getConfig().prefix + table;
+        String stagingTable = ctx.getOldPrefix() + table;
+        long start = System.currentTimeMillis();
+        long cnt;
+        try (Connection sourceConn = source.getConnection())
+        {
+            String ddl = createTable(ctx, sourceConn, sourceTable, stagingTable);
+            if (ddl == null)
+            {
+                if (!optional)
+                {
+                    throw new SQLException("The source database has no table " + sourceTable);
+                }
+                ctx.getLogger().info("No table {} in the source database", sourceTable);
+                return;
+            }
+            String condition = null;
+            try (Statement stmt = statement(ctx, conn))
+            {
+                if (ctx.isDelta() && isIncremental() && SourceDatabase.hasTable(conn, stagingTable))
+                {
+                    condition = changedSince(stmt, ctx.getOldPrefix());
+                }
+                if (condition == null)
+                {
+                    stmt.execute("DROP TABLE IF EXISTS " + stagingTable);
+                    stmt.execute(ddl);
+                }
+            }
+            if (condition == null)
+            {
+                cnt = new PipelinedCopy(ctx).copy(sourceConn, sourceTable, target, stagingTable);
+            }
+            else
+            {
+                ctx.getLogger().info("Copying the changes of {} since {}", sourceTable, condition);
+                cnt = new PipelinedCopy(ctx).copy(sourceConn, sourceTable + " as " + deltas.get(0).getAlias(),
+                                                  condition, target, stagingTable);
+            }
+        }
+        ctx.getLogger().info("{} rows copied from {}", cnt, sourceTable);
+        ctx.getProgress().report(getName(), "copied", cnt);
+        ctx.getReport().stage(getName()).step("copy", cnt, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return the condition selecting the source rows added or changed since the staging table was copied
+     *         or null if it is empty
+     */
+    private String changedSince(Statement stmt, String stagingPrefix) throws SQLException
+    {
+        List<String> conditions = new ArrayList<>();
+        for (Delta delta : deltas)
+        {
+            String mark = delta.readMark(stmt, stagingPrefix);
+            if (DeltaMarks.NONE.equals(mark))
+            {
+                return null;
+            }
+            conditions.add(delta.since(mark));
+        }
+        return String.join(" OR ", conditions);
+    }
+
+    /**
+     * Reads the definition of the source table without its foreign keys as the referenced tables are copied in parallel
+     *
+     * @return the definition for the staging table or null if the source table does not exist
+     */
+    private String createTable(MigrationContext ctx, Connection conn, String sourceTable, String stagingTable) throws SQLException
+    {
+        if (!SourceDatabase.hasTable(conn, sourceTable))
+        {
+            return null;
+        }
+        String ddl;
+        try (Statement stmt = statement(ctx, conn);
+             ResultSet rs = stmt.executeQuery("SHOW CREATE TABLE " + sourceTable))
+        {
+            rs.next();
+            ddl = rs.getString(2);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String line : ddl.split("\n"))
+        {
+            if (line.trim().startsWith("CONSTRAINT"))
+            {
+                continue;
+            }
+            if (line.startsWith(")") && sb.length() > 0 && sb.charAt(sb.length() - 2) == ',')
+            {
+                sb.setLength(sb.length() - 2);
+                sb.append("\n");
+            }
+            sb.append(line).append("\n");
+        }
+        return sb.toString().replaceFirst(Pattern.quote("`" + sourceTable + "`"), Matcher.quoteReplacement("`" + stagingTable + "`"));
+    }
+}
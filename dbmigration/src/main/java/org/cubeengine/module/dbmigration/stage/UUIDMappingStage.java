@@ -0,0 +1,164 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.stage;
+
+import org.cubeengine.module.dbmigration.Delta;
+import org.cubeengine.module.dbmigration.DeltaMarks;
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.MigrationStage;
+import org.cubeengine.module.dbmigration.SourceDatabase;
+import org.cubeengine.module.dbmigration.UUIDKeyBuffer;
+import org.cubeengine.module.dbmigration.writer.UUIDMapWriter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fills a helper table with the mappings of an old tables `key` to the UUID.
+ * <p>The old table is read in pages into a {@link UUIDKeyBuffer} so heap usage does not grow with the table size.
+ * <p>The helper table is keyed by the old ID so every join against it is a primary key lookup.
+ * The UUID is kept as fixed width ascii text as that is what the new tables store.
+ * <p>A mapping never changes, so a delta migration only maps the keys added since the last migration.
+ */
+public class UUIDMappingStage extends MigrationStage
+{
+    public static final String USERS = "user_uuids";
+    public static final String WORLDS = "world_uuids";
+
+    private final String oldTable;
+    private final boolean users;
+
+    private UUIDMappingStage(String name, String oldTable, boolean users)
+    {
+        super(name);
+        this.oldTable = oldTable;
+        this.users = users;
+    }
+
+    public static UUIDMappingStage users()
+    {
+        // OLD user - no longer needed - but we need the mappings `key` to UUID
+        return new UUIDMappingStage(USERS, "user", true);
+    }
+
+    public static UUIDMappingStage worlds()
+    {
+        // OLD worlds - no longer needed - but we need the mappings `key` to UUID
+        return new UUIDMappingStage(WORLDS, "worlds", false);
+    }
+
+    @Override
+    public List<String> getSourceTables()
+    {
+        return Collections.singletonList(oldTable);
+    }
+
+    @Override
+    public Map<String, Delta> getDeltas(MigrationContext ctx)
+    {
+        return Collections.singletonMap(oldTable, Delta.newRows(oldTable, "o.`key`"));
+    }
+
+    @Override
+    public void migrate(MigrationContext ctx, Connection conn) throws SQLException
+    {
+        String table = users ? ctx.getUserUUIDTable() : ctx.getWorldUUIDTable();
+        long from = Long.MIN_VALUE;
+        String newMark;
+        try (Statement stmt = statement(ctx, conn))
+        {
+            String lastMark = ctx.getMarks().get(getName(), oldTable);
+            if (ctx.isDelta() && lastMark != null && SourceDatabase.hasTable(conn, table))
+            {
+                from = Long.parseLong(lastMark);
+                ctx.getLogger().info("{}: mapping the keys after {}", oldTable, lastMark);
+            }
+            else
+            {
+                // Recreate the table in case it was created by an older version without keys
+                stmt.execute("DROP TABLE IF EXISTS " + table);
+                stmt.execute("CREATE TABLE " + table + " ("
+                        + "ID BIGINT NOT NULL,"
+                        + "UUID CHAR(36) CHARACTER SET ascii NOT NULL,"
+                        + "PRIMARY KEY (ID),"
+                        + "KEY (UUID)" // the verification joins the migrated rows by UUID
+                        + ") ENGINE=InnoDB");
+            }
+            newMark = ctx.getMarks().get(getName(), oldTable + DeltaMarks.PENDING);
+            if (newMark == null)
+            {
+                newMark = getDeltas(ctx).get(oldTable).readMark(stmt, ctx.getOldPrefix());
+            }
+        }
+
+        // Stream the old table page by page so only one page is in memory at any time
+        // Pages are read in key order so the rows are appended to the end of the primary key
+        long start = System.currentTimeMillis();
+        int pageSize = Math.max(1, ctx.getConfig().chunkSize);
+        UUIDKeyBuffer buffer = new UUIDKeyBuffer(pageSize);
+        long total = 0;
+        try (PreparedStatement select = ctx.getProgress().track(conn.prepareStatement(
+                "SELECT `key`, UUIDleast, UUIDmost FROM `" + ctx.getOldPrefix() + oldTable + "` "
+                    + "WHERE `key` > ? ORDER BY `key` LIMIT " + pageSize)))
+        {
+            UUIDMapWriter writer = ctx.getConfig().uuidWriter.create(ctx.getConfig().uuidBatchSize);
+            select.setFetchSize(pageSize);
+            do
+            {
+                ctx.getProgress().checkCancelled();
+                buffer.clear();
+                select.setLong(1, from);
+                try (ResultSet rs = select.executeQuery())
+                {
+                    while (rs.next())
+                    {
+                        buffer.add(rs.getLong("key"), rs.getLong("UUIDmost"), rs.getLong("UUIDleast"));
+                    }
+                }
+                if (buffer.isEmpty())
+                {
+                    break;
+                }
+                writer.write(ctx, conn, table, buffer);
+                total += buffer.size();
+                ctx.getProgress().addRows(buffer.size());
+                from = buffer.getKey(buffer.size() - 1);
+            }
+            while (buffer.isFull());
+        }
+
+        // Update the statistics so the joins of the following stages use the primary key
+        try (Statement stmt = statement(ctx, conn))
+        {
+            stmt.execute("ANALYZE TABLE " + table);
+        }
+        // Keys mapped after the mark are mapped again by the next delta migration
+        ctx.getMarks().done(conn, getName(), oldTable, newMark);
+
+        ctx.getReport().stage(getName()).step(oldTable, total, System.currentTimeMillis() - start);
+        ctx.getLogger().info("Entries in {} table: {}", oldTable, total);
+        ctx.getProgress().report(getName(), oldTable, total);
+        // table is now filled with old ID => UUID
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.stage;
+
+import static org.cubeengine.module.vote.storage.TableVote.TABLE_VOTE;
+
+import org.cubeengine.module.dbmigration.Delta;
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.MigrationStage;
+import org.cubeengine.module.dbmigration.VerifyCheck;
+import org.cubeengine.module.vote.Vote;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Migrates the vote counts
+ */
+public class VoteStage extends MigrationStage
+{
+    public VoteStage()
+    {
+        super("votes", UUIDMappingStage.USERS);
+    }
+
+    @Override
+    public boolean isEnabled(MigrationContext ctx)
+    {
+        return ctx.getModuleManager().getModule(Vote.class) != null;
+    }
+
+    @Override
+    public List<String> getSourceTables()
+    {
+        return Arrays.asList("votes");
+    }
+
+    // OLD votes
+    // NEW votecount
+    @Override
+    public List<VerifyCheck> getChecks(MigrationContext ctx)
+    {
+        return Arrays.asList(
+            new VerifyCheck("votes")
+                .source("v.userid", ctx.getConfig().prefix + "votes as v "
+                            + "JOIN " + ctx.getConfig().prefix + "user as ou ON ou.`key` = v.userid "
+                            + "WHERE 1 = 1",
+                        "v.userid", "v.lastvote", "v.voteamount")
+                .target("u.ID", ctx.getMainPrefix() + TABLE_VOTE.getName() + " as nv "
+                            + "JOIN " + ctx.getUserUUIDTable() + " as u ON u.UUID = nv.userid "
+                            + "WHERE 1 = 1",
+                        "u.ID", "nv.lastvote", "nv.voteamount"));
+    }
+
+    @Override
+    public Map<String, Delta> getDeltas(MigrationContext ctx)
+    {
+        Map<String, Delta> deltas = new LinkedHashMap<>();
+        deltas.put("voters", Delta.changedSince("votes", "v.lastvote", "ON DUPLICATE KEY UPDATE "
+            + "lastvote = VALUES(lastvote), voteamount = VALUES(voteamount)"));
+        return deltas;
+    }
+
+    @Override
+    public void migrate(MigrationContext ctx, Connection conn) throws SQLException
+    {
+        String mainPrefix = ctx.getMainPrefix();
+        Map<String, Delta> deltas = getDeltas(ctx);
+        try (Statement stmt = statement(ctx, conn))
+        {
+            if (clearTarget(ctx))
+            {
+                stmt.execute("DELETE FROM " + mainPrefix +TABLE_VOTE.getName());
+            }
+            copy(ctx, conn, stmt, "voters", "votes", "v", "userid",
+                 "INSERT INTO " + mainPrefix +TABLE_VOTE.getName() + " "
+                    + "(userid, lastvote, voteamount) "
+                    + "SELECT u.UUID, v.lastvote, v.voteamount "
+                    + "FROM " + ctx.getUserUUIDTable() + " as u,"
+                    + ctx.getOldPrefix() + "votes as v "
+                    + "WHERE v.userid = u.id",
+                 deltas.get("voters"));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.writer;
+
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.UUIDKeyBuffer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * Splits the buffer into batches and runs every batch in its own transaction
+ */
+public abstract class AbstractUUIDMapWriter implements UUIDMapWriter
+{
+    protected static final String UPSERT = "ON DUPLICATE KEY UPDATE UUID = VALUES(UUID)";
+
+    protected final int batchSize;
+
+    protected AbstractUUIDMapWriter(int batchSize)
+    {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    @Override
+    public void write(MigrationContext ctx, Connection conn, String table, UUIDKeyBuffer buffer) throws SQLException
+    {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try
+        {
+            for (int from = 0; from < buffer.size(); from += batchSize)
+            {
+                ctx.getProgress().checkCancelled();
+                writeBatch(ctx, conn, table, buffer, from, Math.min(buffer.size(), from + batchSize));
+                conn.commit();
+            }
+        }
+        catch (SQLException | RuntimeException e)
+        {
+            conn.rollback();
+            throw e;
+        }
+        finally
+        {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Writes the entries from index from (inclusive) to index to (exclusive)
+     */
+    protected abstract void writeBatch(MigrationContext ctx, Connection conn, String table, UUIDKeyBuffer buffer, int from, int to) throws SQLException;
+
+    protected static String uuid(UUIDKeyBuffer buffer, int index)
+    {
+        return new UUID(buffer.getMostSigBits(index), buffer.getLeastSigBits(index)).toString();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.writer;
+
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.UUIDKeyBuffer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Writes JDBC batches of single row inserts
+ */
+public class BatchUUIDMapWriter extends AbstractUUIDMapWriter
+{
+    public BatchUUIDMapWriter(int batchSize)
+    {
+        super(batchSize);
+    }
+
+    @Override
+    protected void writeBatch(MigrationContext ctx, Connection conn, String table, UUIDKeyBuffer buffer, int from, int to) throws SQLException
+    {
+        try (PreparedStatement pStmt = ctx.getProgress().track(conn.prepareStatement("INSERT INTO " + table + " (ID, UUID) VALUES(?, ?) " + UPSERT)))
+        {
+            for (int i = from; i < to; i++)
+            {
+                pStmt.setLong(1, buffer.getKey(i));
+                pStmt.setString(2, uuid(buffer, i));
+                pStmt.addBatch();
+            }
+            pStmt.executeBatch();
+            ctx.getProgress().untrack(pStmt);
+        }
+    }
+}
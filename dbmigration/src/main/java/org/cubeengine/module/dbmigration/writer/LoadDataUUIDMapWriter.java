@@ -0,0 +1,125 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.writer;
+
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.UUIDKeyBuffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Streams every batch to the server with LOAD DATA LOCAL INFILE.
+ * <p>The MySQL driver is not a compile dependency so the input stream is set by reflection.
+ * If the driver does not support this the fallback writer is used.
+ * The server and driver need local-infile enabled.
+ */
+public class LoadDataUUIDMapWriter extends AbstractUUIDMapWriter
+{
+    private static final String[] DRIVER_STATEMENTS = {"com.mysql.cj.jdbc.JdbcStatement", "com.mysql.jdbc.Statement"};
+
+    private final UUIDMapWriter fallback;
+    private volatile Boolean supported = null;
+
+    public LoadDataUUIDMapWriter(int batchSize, UUIDMapWriter fallback)
+    {
+        super(batchSize);
+        this.fallback = fallback;
+    }
+
+    @Override
+    public void write(MigrationContext ctx, Connection conn, String table, UUIDKeyBuffer buffer) throws SQLException
+    {
+        if (supported == null)
+        {
+            try (Statement stmt = conn.createStatement())
+            {
+                supported = driverStatement(stmt) != null;
+            }
+            if (!supported)
+            {
+                ctx.getLogger().warn("The database driver does not support LOAD DATA LOCAL INFILE streams. Using the fallback writer.");
+            }
+        }
+        if (supported)
+        {
+            super.write(ctx, conn, table, buffer);
+        }
+        else
+        {
+            fallback.write(ctx, conn, table, buffer);
+        }
+    }
+
+    @Override
+    protected void writeBatch(MigrationContext ctx, Connection conn, String table, UUIDKeyBuffer buffer, int from, int to) throws SQLException
+    {
+        StringBuilder data = new StringBuilder((to - from) * 58);
+        for (int i = from; i < to; i++)
+        {
+            data.append(buffer.getKey(i)).append('\t').append(uuid(buffer, i)).append('\n');
+        }
+
+        try (Statement stmt = ctx.getProgress().track(conn.createStatement()))
+        {
+            Class<?> driverStatement = driverStatement(stmt);
+            try
+            {
+                Method method = driverStatement.getMethod("setLocalInfileInputStream", InputStream.class);
+                method.invoke(stmt.unwrap(driverStatement), new ByteArrayInputStream(data.toString().getBytes(StandardCharsets.US_ASCII)));
+            }
+            catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e)
+            {
+                throw new SQLException("Could not set the LOAD DATA input stream", e);
+            }
+            stmt.execute("LOAD DATA LOCAL INFILE 'uuid_map' REPLACE INTO TABLE " + table
+                    + " CHARACTER SET ascii FIELDS TERMINATED BY '\\t' LINES TERMINATED BY '\\n' (ID, UUID)");
+            ctx.getProgress().untrack(stmt);
+        }
+    }
+
+    /**
+     * @return the driver statement class supporting input streams for LOAD DATA LOCAL INFILE or null
+     */
+    private static Class<?> driverStatement(Statement stmt) throws SQLException
+    {
+        for (String name : DRIVER_STATEMENTS)
+        {
+            try
+            {
+                Class<?> driverStatement = Class.forName(name);
+                if (stmt.isWrapperFor(driverStatement))
+                {
+                    driverStatement.getMethod("setLocalInfileInputStream", InputStream.class);
+                    return driverStatement;
+                }
+            }
+            catch (ClassNotFoundException | NoSuchMethodException ignore)
+            {
+                // not this driver
+            }
+        }
+        return null;
+    }
+}
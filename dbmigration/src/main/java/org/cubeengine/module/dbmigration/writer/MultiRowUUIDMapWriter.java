@@ -0,0 +1,62 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.writer;
+
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.UUIDKeyBuffer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Writes every batch with a single INSERT with one VALUES tuple per row
+ */
+public class MultiRowUUIDMapWriter extends AbstractUUIDMapWriter
+{
+    public MultiRowUUIDMapWriter(int batchSize)
+    {
+        super(batchSize);
+    }
+
+    @Override
+    protected void writeBatch(MigrationContext ctx, Connection conn, String table, UUIDKeyBuffer buffer, int from, int to) throws SQLException
+    {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (ID, UUID) VALUES ");
+        for (int i = from; i < to; i++)
+        {
+            if (i != from)
+            {
+                sql.append(", ");
+            }
+            sql.append("(?, ?)");
+        }
+        sql.append(" ").append(UPSERT);
+        try (PreparedStatement pStmt = ctx.getProgress().track(conn.prepareStatement(sql.toString())))
+        {
+            int param = 1;
+            for (int i = from; i < to; i++)
+            {
+                pStmt.setLong(param++, buffer.getKey(i));
+                pStmt.setString(param++, uuid(buffer, i));
+            }
+            pStmt.executeUpdate();
+            ctx.getProgress().untrack(pStmt);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.writer;
+
+import org.cubeengine.module.dbmigration.MigrationContext;
+import org.cubeengine.module.dbmigration.UUIDKeyBuffer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Writes the old ID to UUID mappings into a mapping table.
+ * <p>Implementations commit once per batch.
+ */
+public interface UUIDMapWriter
+{
+    /**
+     * Writes all entries of the buffer into given table with the columns ID and UUID.
+     * Existing mappings of the same ID are replaced.
+     */
+    void write(MigrationContext ctx, Connection conn, String table, UUIDKeyBuffer buffer) throws SQLException;
+}
@@ -0,0 +1,60 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.dbmigration.writer;
+
+/**
+ * The available {@link UUIDMapWriter}s
+ */
+public enum UUIDMapWriterType
+{
+    /**
+     * JDBC batches of single row inserts
+     */
+    BATCH
+    {
+        @Override
+        public UUIDMapWriter create(int batchSize)
+        {
+            return new BatchUUIDMapWriter(batchSize);
+        }
+    },
+    /**
+     * One insert with a VALUES list per batch
+     */
+    MULTI_ROW
+    {
+        @Override
+        public UUIDMapWriter create(int batchSize)
+        {
+            return new MultiRowUUIDMapWriter(batchSize);
+        }
+    },
+    /**
+     * Streams every batch with LOAD DATA LOCAL INFILE. Falls back to {@link #MULTI_ROW} if the driver does not support it
+     */
+    LOAD_DATA
+    {
+        @Override
+        public UUIDMapWriter create(int batchSize)
+        {
+            return new LoadDataUUIDMapWriter(batchSize, MULTI_ROW.create(batchSize));
+        }
+    };
+
+    public abstract UUIDMapWriter create(int batchSize);
+}
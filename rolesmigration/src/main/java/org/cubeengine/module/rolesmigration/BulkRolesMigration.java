@@ -0,0 +1,261 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.rolesmigration;
+
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.NEGATIVE;
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.NEUTRAL;
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.POSITIVE;
+
+import org.cubeengine.libcube.service.database.Database;
+import org.cubeengine.libcube.service.i18n.I18n;
+import org.cubeengine.libcube.service.i18n.formatter.MessageType;
+import org.cubeengine.logscribe.Log;
+import org.spongepowered.api.command.CommandSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+
+/**
+ * Migrates the roles of all old players regardless of them being online.
+ * <p>The old roles are loaded in batches of user keys on a worker pool. Every worker applies its batch
+ * on the server thread in slices of a few players and waits for each slice to be done before sending the next,
+ * so the server thread handles at most one slice per worker and tick.
+ * Every applied slice is persisted as migrated before the next one is sent.
+ */
+public class BulkRolesMigration
+{
+    private final RolesMigrationConfig config;
+    private final Database db;
+    private final Log logger;
+    private final I18n i18n;
+    private final CommandSource source;
+    private final Executor syncExecutor;
+    private final MigratedPlayers migrated;
+    private final BiPredicate<UUID, List<String>> apply;
+
+    private final long started = System.currentTimeMillis();
+    private final AtomicInteger batchesDone = new AtomicInteger();
+    private final AtomicLong players = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private ExecutorService workers;
+    private volatile int batches = 0;
+    private volatile boolean cancelled = false;
+    private volatile boolean done = false;
+
+    /**
+     * @param apply applies the old roles to a player on the server thread and returns false if already migrated
+     */
+    public BulkRolesMigration(RolesMigrationConfig config, Database db, Log logger, I18n i18n, CommandSource source,
+                              Executor syncExecutor, MigratedPlayers migrated, BiPredicate<UUID, List<String>> apply)
+    {
+        this.config = config;
+        this.db = db;
+        this.logger = logger;
+        this.i18n = i18n;
+        this.source = source;
+        this.syncExecutor = syncExecutor;
+        this.migrated = migrated;
+        this.apply = apply;
+    }
+
+    public CompletableFuture<Void> start()
+    {
+        AtomicInteger threadId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, config.bulkThreads),
+                                                    r -> {
+                                                        Thread thread = new Thread(r, "CubeEngine-RolesMigration-Bulk-" + threadId.incrementAndGet());
+                                                        thread.setDaemon(true); // may wait for the server thread while it stops
+                                                        return thread;
+                                                    });
+        return CompletableFuture.supplyAsync(this::loadKeyRange, workers).thenCompose(range -> {
+            if (range == null)
+            {
+                return CompletableFuture.completedFuture(null);
+            }
+            long batchSize = Math.max(1, config.bulkBatchSize);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (long from = range[0] - 1; from < range[1]; from += batchSize)
+            {
+                long fromKey = from;
+                long toKey = Math.min(range[1], from + batchSize);
+                futures.add(CompletableFuture.runAsync(() -> this.migrateBatch(fromKey, toKey), workers));
+            }
+            this.batches = futures.size();
+            this.send(NEUTRAL, "Migrating the roles of old players in {amount} batches...", batches);
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+        }).whenComplete((v, t) -> {
+            this.done = true;
+            this.workers.shutdown();
+            this.finished(t);
+        });
+    }
+
+    private long[] loadKeyRange()
+    {
+        try (Connection conn = db.getConnection())
+        {
+            return new RoleLoader(config.prefix).loadKeyRange(conn);
+        }
+        catch (SQLException e)
+        {
+            throw new CompletionException(e);
+        }
+    }
+
+    private void migrateBatch(long fromKey, long toKey)
+    {
+        checkCancelled();
+        RoleTable table;
+        List<UUID> pending = new ArrayList<>();
+        try (Connection conn = db.getConnection())
+        {
+            table = new RoleLoader(config.prefix).loadRange(conn, fromKey, toKey);
+            for (UUID uuid : table.getPlayers())
+            {
+                if (migrated.contains(uuid))
+                {
+                    skipped.incrementAndGet();
+                }
+                else
+                {
+                    pending.add(uuid);
+                }
+            }
+            if (!migrated.isLoaded())
+            {
+                skipped.addAndGet(migrated.removeSaved(conn, pending));
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new CompletionException(e);
+        }
+
+        int sliceSize = Math.max(1, config.bulkPlayersPerTick);
+        for (int i = 0; i < pending.size(); i += sliceSize)
+        {
+            checkCancelled();
+            List<UUID> slice = pending.subList(i, Math.min(pending.size(), i + sliceSize));
+            List<UUID> applied = new ArrayList<>();
+            try
+            {
+                CompletableFuture.runAsync(() -> {
+                    for (UUID uuid : slice)
+                    {
+                        if (apply.test(uuid, table.get(uuid)))
+                        {
+                            applied.add(uuid);
+                        }
+                    }
+                }, syncExecutor).join();
+            }
+            finally
+            {
+                // Persist every slice before the next one so a stop or failure never migrates a player twice
+                this.save(applied);
+                players.addAndGet(applied.size());
+            }
+        }
+        this.batchDone();
+    }
+
+    private void save(List<UUID> applied)
+    {
+        if (applied.isEmpty())
+        {
+            return;
+        }
+        try (Connection conn = db.getConnection())
+        {
+            migrated.saveAll(conn, applied);
+        }
+        catch (SQLException e)
+        {
+            throw new CompletionException(e);
+        }
+    }
+
+    private void batchDone()
+    {
+        int cnt = batchesDone.incrementAndGet();
+        // Report about every 10 percent
+        int step = Math.max(1, batches / 10);
+        if (cnt % step == 0 && cnt != batches)
+        {
+            this.send(NEUTRAL, "{amount} of {amount} batches done. {amount} players migrated", cnt, batches, players.get());
+        }
+    }
+
+    private void finished(Throwable t)
+    {
+        String elapsed = (System.currentTimeMillis() - started) / 1000 + "s";
+        if (t == null)
+        {
+            logger.info("Bulk migrated the roles of {} players. {} were already migrated", players.get(), skipped.get());
+            this.send(POSITIVE, "Migrated the roles of {amount} players in {input#elapsed}. {amount} were already migrated",
+                      players.get(), elapsed, skipped.get());
+        }
+        else if (cancelled || t.getCause() instanceof CancellationException)
+        {
+            this.send(NEGATIVE, "Bulk roles migration cancelled after {amount} players", players.get());
+        }
+        else
+        {
+            logger.error(t, "Bulk roles migration failed");
+            this.send(NEGATIVE, "Bulk roles migration failed after {amount} players: {input#error}", players.get(), t.getMessage());
+        }
+    }
+
+    private void checkCancelled()
+    {
+        if (cancelled)
+        {
+            throw new CancellationException("Bulk roles migration was cancelled");
+        }
+    }
+
+    /**
+     * Stops the migration after the currently applied slices
+     */
+    public void cancel()
+    {
+        this.cancelled = true;
+    }
+
+    public boolean isDone()
+    {
+        return done;
+    }
+
+    private void send(MessageType type, String msg, Object... args)
+    {
+        this.syncExecutor.execute(() -> i18n.send(source, type, msg, args));
+    }
+}
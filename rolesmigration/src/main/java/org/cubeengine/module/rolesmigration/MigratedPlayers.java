@@ -0,0 +1,250 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.rolesmigration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The players whose roles were already migrated.
+ * <p>Kept in memory for the login check and persisted in a table so players are only migrated once.
+ * The loaded players are kept in arrays sorted by UUID like the {@link RoleTable},
+ * only the players migrated since the start are kept in a set.
+ * When not {@link #load loaded} earlier migrations have to be looked up in the table.
+ * <p>Only players with old roles are recorded.
+ */
+public class MigratedPlayers
+{
+    private final String table;
+    private final Set<UUID> added = ConcurrentHashMap.newKeySet();
+    private volatile long[] most = new long[0];
+    private volatile long[] least = new long[0];
+    private volatile boolean loaded = false;
+
+    public MigratedPlayers(String table)
+    {
+        this.table = table;
+    }
+
+    /**
+     * Creates the table if needed
+     */
+    public void create(Connection conn) throws SQLException
+    {
+        try (Statement stmt = conn.createStatement())
+        {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + table + " ("
+                             + "UUIDmost BIGINT NOT NULL, UUIDleast BIGINT NOT NULL, "
+                             + "migrated TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, "
+                             + "PRIMARY KEY (UUIDmost, UUIDleast)) ENGINE=InnoDB");
+        }
+    }
+
+    /**
+     * Creates the table if needed and loads all migrated players
+     */
+    public void load(Connection conn) throws SQLException
+    {
+        this.create(conn);
+        long[] loadedMost = new long[1024];
+        long[] loadedLeast = new long[1024];
+        int cnt = 0;
+        try (Statement stmt = conn.createStatement();
+             // Sorted by the signed primary key just like Long.compare
+             ResultSet rs = stmt.executeQuery("SELECT UUIDmost, UUIDleast FROM " + table + " ORDER BY UUIDmost, UUIDleast"))
+        {
+            while (rs.next())
+            {
+                if (cnt == loadedMost.length)
+                {
+                    loadedMost = Arrays.copyOf(loadedMost, cnt * 2);
+                    loadedLeast = Arrays.copyOf(loadedLeast, cnt * 2);
+                }
+                loadedMost[cnt] = rs.getLong("UUIDmost");
+                loadedLeast[cnt] = rs.getLong("UUIDleast");
+                cnt++;
+            }
+        }
+        this.least = Arrays.copyOf(loadedLeast, cnt);
+        this.most = Arrays.copyOf(loadedMost, cnt);
+        this.loaded = true;
+    }
+
+    /**
+     * @return whether all migrated players are known in memory
+     */
+    public boolean isLoaded()
+    {
+        return loaded;
+    }
+
+    /**
+     * Looks up a player in the table
+     */
+    public boolean isSaved(Connection conn, UUID uuid) throws SQLException
+    {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM " + table + " WHERE UUIDmost = ? AND UUIDleast = ?"))
+        {
+            stmt.setLong(1, uuid.getMostSignificantBits());
+            stmt.setLong(2, uuid.getLeastSignificantBits());
+            try (ResultSet rs = stmt.executeQuery())
+            {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Removes all players found in the table from given players
+     *
+     * @return the amount of removed players
+     */
+    public int removeSaved(Connection conn, Collection<UUID> uuids) throws SQLException
+    {
+        if (uuids.isEmpty())
+        {
+            return 0;
+        }
+        StringBuilder sql = new StringBuilder("SELECT UUIDmost, UUIDleast FROM ").append(table)
+                                                                               .append(" WHERE (UUIDmost, UUIDleast) IN (");
+        for (int i = 0; i < uuids.size(); i++)
+        {
+            sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        }
+        Set<UUID> saved = new HashSet<>();
+        try (PreparedStatement stmt = conn.prepareStatement(sql.append(")").toString()))
+        {
+            int i = 1;
+            for (UUID uuid : uuids)
+            {
+                stmt.setLong(i++, uuid.getMostSignificantBits());
+                stmt.setLong(i++, uuid.getLeastSignificantBits());
+            }
+            try (ResultSet rs = stmt.executeQuery())
+            {
+                while (rs.next())
+                {
+                    saved.add(new UUID(rs.getLong("UUIDmost"), rs.getLong("UUIDleast")));
+                }
+            }
+        }
+        int removed = 0;
+        for (Iterator<UUID> it = uuids.iterator(); it.hasNext(); )
+        {
+            if (saved.contains(it.next()))
+            {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return whether the player is migrated. Only players migrated since the start are known when not loaded.
+     */
+    public boolean contains(UUID uuid)
+    {
+        return added.contains(uuid) || isLoaded(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    private boolean isLoaded(long uuidMost, long uuidLeast)
+    {
+        long[] most = this.most;
+        long[] least = this.least;
+        int low = 0;
+        int high = most.length - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = Long.compare(most[mid], uuidMost);
+            if (cmp == 0)
+            {
+                cmp = Long.compare(least[mid], uuidLeast);
+            }
+            if (cmp < 0)
+            {
+                low = mid + 1;
+            }
+            else if (cmp > 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks a player as migrated in memory
+     *
+     * @return false if the player was already migrated
+     */
+    public boolean add(UUID uuid)
+    {
+        return !isLoaded(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()) && added.add(uuid);
+    }
+
+    /**
+     * Persists a player marked as migrated
+     */
+    public void save(Connection conn, UUID uuid) throws SQLException
+    {
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT IGNORE INTO " + table + " (UUIDmost, UUIDleast) VALUES (?, ?)"))
+        {
+            stmt.setLong(1, uuid.getMostSignificantBits());
+            stmt.setLong(2, uuid.getLeastSignificantBits());
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Persists all given players marked as migrated
+     */
+    public void saveAll(Connection conn, Collection<UUID> uuids) throws SQLException
+    {
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT IGNORE INTO " + table + " (UUIDmost, UUIDleast) VALUES (?, ?)"))
+        {
+            for (UUID uuid : uuids)
+            {
+                stmt.setLong(1, uuid.getMostSignificantBits());
+                stmt.setLong(2, uuid.getLeastSignificantBits());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    public int size()
+    {
+        return most.length + added.size();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.rolesmigration;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * A size and time bounded cache of pending or completed role lookups.
+ * <p>Players without old roles are cached as an empty list so they are only looked up once.
+ * Failed lookups are not cached.
+ */
+public class RoleCache
+{
+    private final Function<UUID, CompletableFuture<List<String>>> loader;
+    private final long expireMillis;
+    private final Map<UUID, Entry> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param loader       starts the lookup of a players roles
+     * @param maxSize      the maximum amount of cached players. The least recently used is evicted first.
+     * @param expireMillis the time after a lookup is repeated
+     */
+    public RoleCache(Function<UUID, CompletableFuture<List<String>>> loader, int maxSize, long expireMillis)
+    {
+        this.loader = loader;
+        this.expireMillis = expireMillis;
+        this.entries = new LinkedHashMap<UUID, Entry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached lookup for given player or starts a new one
+     */
+    public synchronized CompletableFuture<List<String>> get(UUID uuid)
+    {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(uuid);
+        if (entry != null && now - entry.created < expireMillis && !entry.future.isCompletedExceptionally())
+        {
+            hits++;
+            return entry.future;
+        }
+        misses++;
+        CompletableFuture<List<String>> future = loader.apply(uuid);
+        entries.put(uuid, new Entry(future, now));
+        return future;
+    }
+
+    public synchronized void invalidate(UUID uuid)
+    {
+        entries.remove(uuid);
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    private static class Entry
+    {
+        private final CompletableFuture<List<String>> future;
+        private final long created;
+
+        private Entry(CompletableFuture<List<String>> future, long created)
+        {
+            this.future = future;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.rolesmigration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Loads the roles of players from the old tables
+ */
+public class RoleLoader
+{
+    private final String prefix;
+
+    /**
+     * @param prefix the table prefix of the old tables
+     */
+    public RoleLoader(String prefix)
+    {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Loads the roles of all players
+     */
+    public RoleTable loadAll(Connection conn) throws SQLException
+    {
+        RoleTable.Builder builder = new RoleTable.Builder();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(
+                  "SELECT u.UUIDleast, u.UUIDmost, r.roleName "
+                    + "FROM " + prefix + "user as u, "
+                    + prefix + "roles as r "
+                    + "WHERE u.`key` = r.userId"))
+        {
+            while (rs.next())
+            {
+                builder.add(new UUID(rs.getLong("UUIDmost"), rs.getLong("UUIDleast")), rs.getString("rolename"));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Loads the roles of all players with a user key in given range
+     *
+     * @param fromKey the exclusive lower bound
+     * @param toKey   the inclusive upper bound
+     */
+    public RoleTable loadRange(Connection conn, long fromKey, long toKey) throws SQLException
+    {
+        RoleTable.Builder builder = new RoleTable.Builder();
+        try (PreparedStatement stmt = conn.prepareStatement(
+                  "SELECT u.UUIDleast, u.UUIDmost, r.roleName "
+                    + "FROM " + prefix + "user as u, "
+                    + prefix + "roles as r "
+                    + "WHERE u.`key` = r.userId AND u.`key` > ? AND u.`key` <= ?"))
+        {
+            stmt.setLong(1, fromKey);
+            stmt.setLong(2, toKey);
+            try (ResultSet rs = stmt.executeQuery())
+            {
+                while (rs.next())
+                {
+                    builder.add(new UUID(rs.getLong("UUIDmost"), rs.getLong("UUIDleast")), rs.getString("rolename"));
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the lowest and highest user key having roles or null if there are none
+     */
+    public long[] loadKeyRange(Connection conn) throws SQLException
+    {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MIN(userId), MAX(userId) FROM " + prefix + "roles"))
+        {
+            if (!rs.next() || rs.getObject(1) == null)
+            {
+                return null;
+            }
+            return new long[]{rs.getLong(1), rs.getLong(2)};
+        }
+    }
+
+    /**
+     * Loads the roles of a single player
+     *
+     * @return the roles or an empty list if the player had none
+     */
+    public List<String> load(Connection conn, UUID uuid) throws SQLException
+    {
+        List<String> roles = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(
+                  "SELECT r.roleName "
+                    + "FROM " + prefix + "user as u, "
+                    + prefix + "roles as r "
+                    + "WHERE u.`key` = r.userId AND u.UUIDmost = ? AND u.UUIDleast = ?"))
+        {
+            stmt.setLong(1, uuid.getMostSignificantBits());
+            stmt.setLong(2, uuid.getLeastSignificantBits());
+            try (ResultSet rs = stmt.executeQuery())
+            {
+                while (rs.next())
+                {
+                    roles.add(rs.getString("rolename"));
+                }
+            }
+        }
+        return roles;
+    }
+
+    /**
+     * Loads all players having at least one role
+     */
+    public Set<UUID> loadPlayers(Connection conn) throws SQLException
+    {
+        Set<UUID> players = new HashSet<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(
+                  "SELECT DISTINCT u.UUIDleast, u.UUIDmost "
+                    + "FROM " + prefix + "user as u, "
+                    + prefix + "roles as r "
+                    + "WHERE u.`key` = r.userId"))
+        {
+            while (rs.next())
+            {
+                players.add(new UUID(rs.getLong("UUIDmost"), rs.getLong("UUIDleast")));
+            }
+        }
+        return players;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.rolesmigration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A compact read-only map of players to their old roles.
+ * <p>Role names are stored once in a dictionary and referenced by their index.
+ * Players are kept in arrays sorted by UUID and looked up with a binary search.
+ * Every player costs 20 bytes plus 2 bytes per role instead of a UUID, an ArrayList and a String per role.
+ */
+public class RoleTable
+{
+    private final String[] names;
+    private final long[] most;
+    private final long[] least;
+    private final int[] offsets;
+    private final short[] roles;
+
+    private RoleTable(String[] names, long[] most, long[] least, int[] offsets, short[] roles)
+    {
+        this.names = names;
+        this.most = most;
+        this.least = least;
+        this.offsets = offsets;
+        this.roles = roles;
+    }
+
+    public static RoleTable empty()
+    {
+        return new Builder().build();
+    }
+
+    /**
+     * @return the roles of given player or an empty list if the player had none
+     */
+    public List<String> get(UUID uuid)
+    {
+        int index = indexOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (index < 0)
+        {
+            return Collections.emptyList();
+        }
+        String[] list = new String[offsets[index + 1] - offsets[index]];
+        for (int i = 0; i < list.length; i++)
+        {
+            list[i] = names[roles[offsets[index] + i]];
+        }
+        return Arrays.asList(list);
+    }
+
+    private int indexOf(long uuidMost, long uuidLeast)
+    {
+        int low = 0;
+        int high = most.length - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(most[mid], least[mid], uuidMost, uuidLeast);
+            if (cmp < 0)
+            {
+                low = mid + 1;
+            }
+            else if (cmp > 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return all players with at least one role
+     */
+    public List<UUID> getPlayers()
+    {
+        List<UUID> players = new ArrayList<>(most.length);
+        for (int i = 0; i < most.length; i++)
+        {
+            players.add(new UUID(most[i], least[i]));
+        }
+        return players;
+    }
+
+    public int size()
+    {
+        return most.length;
+    }
+
+    public int getRows()
+    {
+        return roles.length;
+    }
+
+    public int getDistinctRoles()
+    {
+        return names.length;
+    }
+
+    /**
+     * @return a rough estimate of the heap used by this table in bytes
+     */
+    public long estimateBytes()
+    {
+        long bytes = 5 * 16 + most.length * 8L + least.length * 8L + offsets.length * 4L + roles.length * 2L;
+        for (String name : names)
+        {
+            bytes += 40 + name.length() * 2;
+        }
+        return bytes;
+    }
+
+    private static int compare(long mostA, long leastA, long mostB, long leastB)
+    {
+        int cmp = Long.compare(mostA, mostB);
+        return cmp != 0 ? cmp : Long.compare(leastA, leastB);
+    }
+
+    /**
+     * Collects the rows of players and roles in any order
+     */
+    public static class Builder
+    {
+        private final Map<String, Short> dictionary = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+        private long[] most = new long[1024];
+        private long[] least = new long[1024];
+        private short[] roles = new short[1024];
+        private int rows = 0;
+
+        public Builder add(UUID uuid, String role)
+        {
+            Short id = dictionary.get(role);
+            if (id == null)
+            {
+                if (names.size() > Short.MAX_VALUE)
+                {
+                    throw new IllegalStateException("Too many distinct roles");
+                }
+                id = (short) names.size();
+                dictionary.put(role, id);
+                names.add(role);
+            }
+            if (rows == most.length)
+            {
+                most = Arrays.copyOf(most, rows * 2);
+                least = Arrays.copyOf(least, rows * 2);
+                roles = Arrays.copyOf(roles, rows * 2);
+            }
+            most[rows] = uuid.getMostSignificantBits();
+            least[rows] = uuid.getLeastSignificantBits();
+            roles[rows] = id;
+            rows++;
+            return this;
+        }
+
+        public RoleTable build()
+        {
+            int[] order = new int[rows];
+            for (int i = 0; i < rows; i++)
+            {
+                order[i] = i;
+            }
+            sort(order, new int[rows], 0, rows);
+
+            int players = 0;
+            for (int i = 0; i < rows; i++)
+            {
+                if (i == 0 || compare(most[order[i]], least[order[i]], most[order[i - 1]], least[order[i - 1]]) != 0)
+                {
+                    players++;
+                }
+            }
+
+            long[] playerMost = new long[players];
+            long[] playerLeast = new long[players];
+            int[] offsets = new int[players + 1];
+            short[] playerRoles = new short[rows];
+            int player = -1;
+            int cnt = 0;
+            for (int i = 0; i < rows; i++)
+            {
+                int row = order[i];
+                boolean newPlayer = player < 0 || compare(most[row], least[row], playerMost[player], playerLeast[player]) != 0;
+                if (newPlayer)
+                {
+                    player++;
+                    playerMost[player] = most[row];
+                    playerLeast[player] = least[row];
+                    offsets[player] = cnt;
+                }
+                else if (playerRoles[cnt - 1] == roles[row])
+                {
+                    continue; // duplicate row
+                }
+                playerRoles[cnt++] = roles[row];
+            }
+            offsets[players] = cnt;
+            return new RoleTable(names.toArray(new String[0]), playerMost, playerLeast, offsets, Arrays.copyOf(playerRoles, cnt));
+        }
+
+        /**
+         * Stable merge sort of the row indices by UUID and role
+         */
+        private void sort(int[] order, int[] tmp, int from, int to)
+        {
+            if (to - from < 2)
+            {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            sort(order, tmp, from, mid);
+            sort(order, tmp, mid, to);
+            int left = from;
+            int right = mid;
+            for (int i = from; i < to; i++)
+            {
+                if (right >= to || (left < mid && compareRows(order[left], order[right]) <= 0))
+                {
+                    tmp[i] = order[left++];
+                }
+                else
+                {
+                    tmp[i] = order[right++];
+                }
+            }
+            System.arraycopy(tmp, from, order, from, to - from);
+        }
+
+        private int compareRows(int a, int b)
+        {
+            int cmp = compare(most[a], least[a], most[b], least[b]);
+            return cmp != 0 ? cmp : Short.compare(roles[a], roles[b]);
+        }
+    }
+}
@@ -17,6 +17,9 @@
  */
 package org.cubeengine.module.rolesmigration;
 
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.NEGATIVE;
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.NEUTRAL;
+
 import org.cubeengine.logscribe.Log;
 import org.cubeengine.butler.parametric.Command;
 import org.cubeengine.libcube.CubeEngineModule;
@@ -34,23 +37,33 @@ import org.cubeengine.processor.Module;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.command.CommandSource;
 import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.entity.living.player.User;
 import org.spongepowered.api.event.Listener;
 import org.spongepowered.api.event.filter.Getter;
 import org.spongepowered.api.event.game.state.GamePostInitializationEvent;
+import org.spongepowered.api.event.game.state.GameStoppingEvent;
 import org.spongepowered.api.event.network.ClientConnectionEvent;
 import org.spongepowered.api.plugin.PluginContainer;
 import org.spongepowered.api.profile.GameProfile;
-import org.spongepowered.api.service.permission.Subject;
+import org.spongepowered.api.service.user.UserStorageService;
 import org.spongepowered.api.service.whitelist.WhitelistService;
 
-import java.sql.ResultSet;
+import java.io.IOException;
+import java.sql.Connection;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -68,8 +81,15 @@ public class RolesMigration extends CubeEngineModule
     @Inject private CommandManager cm;
     @Inject private ModuleManager mm;
 
-    private Map<UUID, List<String>> roleMap = new HashMap<>();
+    private RoleTable roleMap = RoleTable.empty();
     private Roles roles;
+    private final RolesMigrationReport report = new RolesMigrationReport();
+
+    private MigratedPlayers migrated;
+    private RoleCache cache;
+    private BulkRolesMigration bulk;
+    private ExecutorService lookupExecutor;
+    private Executor syncExecutor;
 
     @Listener
     public void onEnable(GamePostInitializationEvent event) throws SQLException
@@ -77,40 +97,171 @@ public class RolesMigration extends CubeEngineModule
         this.logger = mm.getLoggerFor(RolesMigration.class);
         this.roles = ((Roles) mm.getModule(Roles.class));
         cm.addCommands(this, this);
-        if (roles != null)
+        if (roles == null)
         {
-            Statement stmt = db.getConnection().createStatement();
-            ResultSet rs = stmt.executeQuery(
-                  "SELECT u.UUIDleast, u.UUIDmost, r.roleName "
-                    + "FROM " + config.prefix + "user as u, "
-                    + config.prefix + "roles as r "
-                    + "WHERE u.`key` = r.userId");
+            logger.warn("Roles Module not found. Migration cannot happen!");
+            return;
+        }
+        AtomicInteger threadId = new AtomicInteger();
+        this.lookupExecutor = Executors.newFixedThreadPool(2, r -> new Thread(r, "CubeEngine-RolesMigration-" + threadId.incrementAndGet()));
+        this.syncExecutor = Sponge.getScheduler().createSyncExecutor(plugin);
 
-            while (rs.next())
+        this.migrated = new MigratedPlayers(config.prefix + "roles_migrated");
+        if (config.lazyLookup)
+        {
+            // Earlier migrations are looked up together with the roles
+            try (Connection conn = db.getConnection())
             {
-                UUID uuid = new UUID(rs.getLong("UUIDmost"), rs.getLong("UUIDleast"));
-                String role = rs.getString("rolename");
-                List<String> roleList = roleMap.getOrDefault(uuid, new ArrayList<>());
-                roleList.add(role);
-                roleMap.putIfAbsent(uuid, roleList);
+                migrated.create(conn);
             }
+            this.cache = new RoleCache(this::lookup, config.cacheSize, TimeUnit.MINUTES.toMillis(config.cacheMinutes));
+            logger.info("Roles will be looked up when players join");
+            return;
+        }
 
-            logger.info("Loaded {} players with their roles.", roleMap.size());
+        try (Connection conn = db.getConnection())
+        {
+            migrated.load(conn);
         }
-        else
+        logger.info("{} players were already migrated", migrated.size());
+
+        long start = System.currentTimeMillis();
+        try (Connection conn = db.getConnection())
         {
-            logger.warn("Roles Module not found. Migration cannot happen!");
+            report.connectionWait(System.currentTimeMillis() - start);
+            roleMap = new RoleLoader(config.prefix).loadAll(conn);
+        }
+        long rows = roleMap.getRows();
+
+        long time = System.currentTimeMillis() - start;
+        report.preloaded(time, rows, roleMap.size());
+        logger.info("Loaded {} players with their roles. ({} rows, {} distinct roles in {} ms, ~{} KiB)",
+                    roleMap.size(), rows, roleMap.getDistinctRoles(), time, roleMap.estimateBytes() / 1024);
+        writeReport();
+    }
+
+    @Listener
+    public void onDisable(GameStoppingEvent event)
+    {
+        if (this.bulk != null)
+        {
+            this.bulk.cancel();
+        }
+        if (this.lookupExecutor != null)
+        {
+            this.lookupExecutor.shutdownNow();
+        }
+        writeReport();
+    }
+
+    private void writeReport()
+    {
+        if (cache != null)
+        {
+            report.cache(cache.getHits(), cache.getMisses());
+        }
+        try
+        {
+            report.write(mm.getPathFor(RolesMigration.class).resolve(RolesMigrationReport.FILE));
+        }
+        catch (IOException e)
+        {
+            logger.error(e, "Could not write the roles migration report");
+        }
+    }
+
+    /**
+     * Looks up the roles of a single player on the lookup executor
+     *
+     * @return the roles or null if the player was migrated before
+     */
+    private CompletableFuture<List<String>> lookup(UUID uuid)
+    {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.currentTimeMillis();
+            try (Connection conn = db.getConnection())
+            {
+                report.connectionWait(System.currentTimeMillis() - start);
+                if (migrated.isSaved(conn, uuid))
+                {
+                    return null;
+                }
+                List<String> oldroles = new RoleLoader(config.prefix).load(conn, uuid);
+                report.lookedUp(System.currentTimeMillis() - start);
+                return oldroles;
+            }
+            catch (SQLException e)
+            {
+                throw new CompletionException(e);
+            }
+        }, lookupExecutor);
+    }
+
+    @Listener
+    public void onAuth(ClientConnectionEvent.Auth event)
+    {
+        if (cache != null && !migrated.contains(event.getProfile().getUniqueId()))
+        {
+            // Start the lookup early so it is usually done when the player joins
+            cache.get(event.getProfile().getUniqueId());
         }
     }
 
     @Listener
     public void onLogin(ClientConnectionEvent.Join event, @Getter("getTargetEntity") Player player)
     {
-        List<String> oldroles = roleMap.get(player.getUniqueId());
+        if (migrated == null)
+        {
+            return;
+        }
+        if (migrated.contains(player.getUniqueId()))
+        {
+            report.loginSkipped();
+            return;
+        }
+        if (cache == null)
+        {
+            migrate(player, roleMap.get(player.getUniqueId()));
+            return;
+        }
+        cache.get(player.getUniqueId()).whenCompleteAsync((oldroles, t) -> {
+            if (t != null)
+            {
+                logger.error(t, "Could not look up the roles of {}", player.getName());
+            }
+            else if (oldroles == null)
+            {
+                report.loginSkipped();
+            }
+            else if (player.isOnline())
+            {
+                migrate(player, oldroles);
+            }
+        }, syncExecutor);
+    }
+
+    /**
+     * Adds the old roles to the player and marks them as migrated.
+     * Players without old roles are not recorded as they have nothing to migrate.
+     * Must be called on the server thread. The subject is reloaded asynchronously.
+     */
+    private void migrate(Player player, List<String> oldroles)
+    {
         if (oldroles == null || oldroles.isEmpty())
         {
             return;
         }
+        UUID uuid = player.getUniqueId();
+        if (!migrated.add(uuid))
+        {
+            return;
+        }
+        if (cache != null)
+        {
+            cache.invalidate(uuid);
+        }
+        saveMigrated(uuid);
+        long start = System.currentTimeMillis();
         PermissionData data = player.get(PermissionData.class).orElse(new PermissionData(new ArrayList<>(), new HashMap<>(), new HashMap<>()));
 
         logger.info("Adding Roles to {}", player.getName());
@@ -119,22 +270,138 @@ public class RolesMigration extends CubeEngineModule
             logger.info(" - {}", oldrole);
         }
 
-        data.getParents().addAll(oldroles);
+        addParents(data, oldroles);
         player.offer(data);
-        Subject subject = roles.getService().getUserSubjects().loadSubject(player.getIdentifier()).join();
-        if (subject instanceof UserSubject)
+        report.loginMigrated(System.currentTimeMillis() - start);
+        roles.getService().getUserSubjects().loadSubject(player.getIdentifier()).whenCompleteAsync((subject, t) -> {
+            if (t != null)
+            {
+                logger.error(t, "Could not reload the subject of {}", player.getName());
+            }
+            else if (subject instanceof UserSubject)
+            {
+                ((UserSubject) subject).reload();
+            }
+        }, syncExecutor);
+    }
+
+    /**
+     * Adds the old roles that are not already a parent
+     */
+    private static void addParents(PermissionData data, List<String> oldroles)
+    {
+        List<String> parents = data.getParents();
+        for (String oldrole : oldroles)
         {
-            ((UserSubject) subject).reload();
+            if (!parents.contains(oldrole))
+            {
+                parents.add(oldrole);
+            }
         }
     }
 
+    private void saveMigrated(UUID uuid)
+    {
+        lookupExecutor.execute(() -> {
+            try (Connection conn = db.getConnection())
+            {
+                migrated.save(conn, uuid);
+            }
+            catch (SQLException e)
+            {
+                logger.error(e, "Could not save {} as migrated", uuid);
+            }
+        });
+    }
+
+    /**
+     * Adds the old roles to a possibly offline player. Must be called on the server thread.
+     *
+     * @return false if the player was already migrated
+     */
+    private boolean migrateOffline(UUID uuid, List<String> oldroles)
+    {
+        UserStorageService uss = Sponge.getServiceManager().provideUnchecked(UserStorageService.class);
+        User user = uss.getOrCreate(GameProfile.of(uuid));
+        Optional<Player> player = user.getPlayer();
+        if (player.isPresent())
+        {
+            if (migrated.contains(uuid))
+            {
+                return false;
+            }
+            migrate(player.get(), oldroles);
+            return true;
+        }
+        if (!migrated.add(uuid))
+        {
+            return false;
+        }
+        if (cache != null)
+        {
+            cache.invalidate(uuid);
+        }
+        PermissionData data = user.get(PermissionData.class).orElse(new PermissionData(new ArrayList<>(), new HashMap<>(), new HashMap<>()));
+        addParents(data, oldroles);
+        user.offer(data);
+        logger.debug("Added {} roles to {}", oldroles.size(), uuid);
+        return true;
+    }
+
+    @Command(desc = "Migrates the roles of all old players including offline players")
+    public void migrateAllRoles(CommandSource ctx)
+    {
+        if (migrated == null)
+        {
+            i18n.send(ctx, NEGATIVE, "Roles Module not found. Migration cannot happen!");
+            return;
+        }
+        if (bulk != null && !bulk.isDone())
+        {
+            i18n.send(ctx, NEGATIVE, "The roles migration is already running.");
+            return;
+        }
+        this.bulk = new BulkRolesMigration(config, db, logger, i18n, ctx, syncExecutor, migrated, this::migrateOffline);
+        this.bulk.start();
+    }
+
+    @Command(desc = "Cancels the running bulk roles migration")
+    public void cancelRolesMigration(CommandSource ctx)
+    {
+        if (bulk == null || bulk.isDone())
+        {
+            i18n.send(ctx, NEGATIVE, "There is no roles migration running.");
+            return;
+        }
+        bulk.cancel();
+        i18n.send(ctx, NEUTRAL, "Cancelling the roles migration...");
+    }
+
     @Command(desc = "Adds all players with non-default roles to the whitelist")
     public void whitelistRoles(CommandSource ctx)
     {
+        if (migrated == null)
+        {
+            i18n.send(ctx, NEGATIVE, "Roles Module not found. Migration cannot happen!");
+            return;
+        }
         WhitelistService ws = Sponge.getServiceManager().provideUnchecked(WhitelistService.class);
-        for (UUID uuid : roleMap.keySet())
+        new WhitelistImport(logger, i18n, ctx, lookupExecutor, syncExecutor, ws, config.whitelistBatchSize, config.whitelistMillisPerTick).start(this::loadRolePlayers);
+    }
+
+    private Collection<UUID> loadRolePlayers()
+    {
+        if (cache == null)
+        {
+            return roleMap.getPlayers();
+        }
+        try (Connection conn = db.getConnection())
+        {
+            return new RoleLoader(config.prefix).loadPlayers(conn);
+        }
+        catch (SQLException e)
         {
-            ws.addProfile(GameProfile.of(uuid));
+            throw new CompletionException(e);
         }
     }
 
@@ -24,4 +24,30 @@ public class RolesMigrationConfig extends ReflectedYaml
 {
     @Comment("The table prefix used for all old CubeEngine tables")
     public String prefix = "cube_";
+
+    @Comment("Looks up the old roles of a player when they join instead of loading all players on startup")
+    public boolean lazyLookup = false;
+
+    @Comment("The maximum amount of players whose roles are cached when using lazyLookup")
+    public int cacheSize = 1000;
+
+    @Comment("The time in minutes after a cached lookup is repeated")
+    public int cacheMinutes = 30;
+
+    @Comment("The amount of old user keys loaded per batch by the bulk migration")
+    public int bulkBatchSize = 1000;
+
+    @Comment("The amount of batches loaded in parallel by the bulk migration")
+    public int bulkThreads = 2;
+
+    @Comment("The maximum amount of players every bulk migration thread applies roles to per tick")
+    public int bulkPlayersPerTick = 50;
+
+    @Comment("The maximum amount of players added to the whitelist per tick by whitelistRoles.\n"
+        + "The whitelist is persisted for every single player so keep this low on large whitelists.\n"
+        + "On large whitelists a single player takes longer than whitelist-millis-per-tick, so only about 20 players are added per second")
+    public int whitelistBatchSize = 5;
+
+    @Comment("The maximum time in milliseconds whitelistRoles spends per tick. At least one player is added every tick")
+    public int whitelistMillisPerTick = 5;
 }
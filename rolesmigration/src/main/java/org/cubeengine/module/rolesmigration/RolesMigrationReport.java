@@ -0,0 +1,99 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.rolesmigration;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Timings and counts of the roles migration written as JSON
+ */
+public class RolesMigrationReport
+{
+    public static final String FILE = "rolesmigration-report.json";
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private long connectionWaitMillis;
+    private long preloadMillis;
+    private long preloadRows;
+    private long preloadPlayers;
+    private double preloadRowsPerSecond;
+    private long loginsMigrated;
+    private long loginMillis;
+    private double averageLoginMillis;
+    private long loginsSkipped;
+    private long lookups;
+    private long lookupMillis;
+    private double averageLookupMillis;
+    private long cacheHits;
+    private long cacheMisses;
+
+    public synchronized void connectionWait(long millis)
+    {
+        this.connectionWaitMillis += millis;
+    }
+
+    public synchronized void preloaded(long millis, long rows, long players)
+    {
+        this.preloadMillis = millis;
+        this.preloadRows = rows;
+        this.preloadPlayers = players;
+        this.preloadRowsPerSecond = millis <= 0 ? 0 : rows * 1000d / millis;
+    }
+
+    public synchronized void loginMigrated(long millis)
+    {
+        this.loginsMigrated++;
+        this.loginMillis += millis;
+        this.averageLoginMillis = loginMillis / (double) loginsMigrated;
+    }
+
+    public synchronized void loginSkipped()
+    {
+        this.loginsSkipped++;
+    }
+
+    public synchronized void lookedUp(long millis)
+    {
+        this.lookups++;
+        this.lookupMillis += millis;
+        this.averageLookupMillis = lookupMillis / (double) lookups;
+    }
+
+    public synchronized void cache(long hits, long misses)
+    {
+        this.cacheHits = hits;
+        this.cacheMisses = misses;
+    }
+
+    public synchronized void write(Path file) throws IOException
+    {
+        Files.createDirectories(file.getParent());
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            GSON.toJson(this, writer);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.rolesmigration;
+
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.NEGATIVE;
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.NEUTRAL;
+import static org.cubeengine.libcube.service.i18n.formatter.MessageType.POSITIVE;
+
+import org.cubeengine.libcube.service.i18n.I18n;
+import org.cubeengine.libcube.service.i18n.formatter.MessageType;
+import org.cubeengine.logscribe.Log;
+import org.spongepowered.api.command.CommandSource;
+import org.spongepowered.api.profile.GameProfile;
+import org.spongepowered.api.service.whitelist.WhitelistService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Adds all players with old roles to the whitelist.
+ * <p>The players are loaded asynchronously. Players already on the whitelist are filtered using
+ * a single snapshot of the whitelist and the rest is added on the server thread, one batch per tick.
+ * <p>The WhitelistService has no bulk add and persists the whole whitelist for every added profile,
+ * so the cost of a player grows with the whitelist. A batch is bounded by its size and by the time spent on it.
+ * Once a single add takes longer than the time per tick only one player is added per tick, about 20 per second.
+ * The throughput measured on the first batch is reported.
+ */
+public class WhitelistImport
+{
+    private static final int TICKS_PER_SECOND = 20;
+
+    private final Log logger;
+    private final I18n i18n;
+    private final CommandSource source;
+    private final Executor asyncExecutor;
+    private final Executor syncExecutor;
+    private final WhitelistService ws;
+    private final int batchSize;
+    private final long millisPerTick;
+
+    private final CompletableFuture<Integer> result = new CompletableFuture<>();
+    private List<UUID> pending;
+    private int added = 0;
+
+    public WhitelistImport(Log logger, I18n i18n, CommandSource source, Executor asyncExecutor, Executor syncExecutor,
+                           WhitelistService ws, int batchSize, long millisPerTick)
+    {
+        this.logger = logger;
+        this.i18n = i18n;
+        this.source = source;
+        this.asyncExecutor = asyncExecutor;
+        this.syncExecutor = syncExecutor;
+        this.ws = ws;
+        this.batchSize = Math.max(1, batchSize);
+        this.millisPerTick = millisPerTick;
+    }
+
+    /**
+     * @param players loads the players to whitelist. Called asynchronously.
+     * @return the amount of players added
+     */
+    public CompletableFuture<Integer> start(Supplier<Collection<UUID>> players)
+    {
+        CompletableFuture.supplyAsync(players, asyncExecutor).thenAcceptAsync(this::filter, syncExecutor).whenComplete((v, t) -> {
+            if (t != null)
+            {
+                this.fail(t);
+            }
+        });
+        return result;
+    }
+
+    private void filter(Collection<UUID> players)
+    {
+        Set<UUID> whitelisted = new HashSet<>();
+        for (GameProfile profile : ws.getWhitelistedProfiles())
+        {
+            whitelisted.add(profile.getUniqueId());
+        }
+        this.pending = new ArrayList<>(players.size());
+        for (UUID uuid : players)
+        {
+            if (!whitelisted.contains(uuid))
+            {
+                pending.add(uuid);
+            }
+        }
+        this.send(NEUTRAL, "Adding {amount} players to the whitelist. {amount} are already whitelisted.",
+                  pending.size(), players.size() - pending.size());
+        this.addBatch();
+    }
+
+    private void addBatch()
+    {
+        try
+        {
+            long start = System.currentTimeMillis();
+            int max = Math.min(pending.size(), added + batchSize);
+            int to = added;
+            while (to < max && (to == added || System.currentTimeMillis() - start < millisPerTick))
+            {
+                ws.addProfile(GameProfile.of(pending.get(to++)));
+            }
+            if (added == 0 && to > 0)
+            {
+                this.estimate(to);
+            }
+            int step = Math.max(batchSize, pending.size() / 10);
+            if (to / step != added / step && to != pending.size())
+            {
+                this.send(NEUTRAL, "{amount} of {amount} players whitelisted", to, pending.size());
+            }
+            this.added = to;
+            if (added < pending.size())
+            {
+                syncExecutor.execute(this::addBatch); // next tick
+                return;
+            }
+            this.send(POSITIVE, "Added {amount} players to the whitelist.", added);
+            result.complete(added);
+        }
+        catch (RuntimeException e)
+        {
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Reports the throughput of one batch per tick as measured on the first batch
+     */
+    private void estimate(int firstBatch)
+    {
+        int perSecond = firstBatch * TICKS_PER_SECOND;
+        this.send(NEUTRAL, "Whitelisting about {amount} players per second. This takes at least {amount} seconds.",
+                  perSecond, pending.size() / perSecond);
+    }
+
+    private void fail(Throwable t)
+    {
+        logger.error(t, "Could not whitelist the players with roles");
+        this.send(NEGATIVE, "Could not whitelist the players with roles: {input#error}", t.getMessage());
+        result.completeExceptionally(t);
+    }
+
+    private void send(MessageType type, String msg, Object... args)
+    {
+        this.syncExecutor.execute(() -> i18n.send(source, type, msg, args));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of CubeEngine.
+ * CubeEngine is licensed under the GNU General Public License Version 3.
+ *
+ * CubeEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CubeEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CubeEngine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cubeengine.module.rolesmigration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+public class RoleTableTest
+{
+    private static final String[] ROLES = {"guest", "member", "regular", "veteran", "moderator", "admin"};
+
+    @Test
+    public void emptyTable()
+    {
+        RoleTable table = RoleTable.empty();
+        assertEquals(0, table.size());
+        assertEquals(0, table.getRows());
+        assertEquals(Collections.emptyList(), table.get(UUID.randomUUID()));
+    }
+
+    @Test
+    public void duplicateRowsAreMerged()
+    {
+        UUID player = UUID.randomUUID();
+        RoleTable table = new RoleTable.Builder()
+            .add(player, "member")
+            .add(player, "admin")
+            .add(player, "member")
+            .add(player, "member")
+            .build();
+        assertEquals(1, table.size());
+        assertEquals(2, table.getRows());
+        assertEquals(2, table.getDistinctRoles());
+        assertEquals(set("member", "admin"), new HashSet<>(table.get(player)));
+    }
+
+    @Test
+    public void signedAndSharedBitsAreOrdered()
+    {
+        List<UUID> players = Arrays.asList(new UUID(Long.MIN_VALUE, Long.MAX_VALUE),
+                                           new UUID(Long.MIN_VALUE, Long.MIN_VALUE),
+                                           new UUID(-1, 0),
+                                           new UUID(0, -1),
+                                           new UUID(0, 1),
+                                           new UUID(Long.MAX_VALUE, Long.MIN_VALUE),
+                                           new UUID(Long.MAX_VALUE, Long.MAX_VALUE));
+        RoleTable.Builder builder = new RoleTable.Builder();
+        for (int i = players.size() - 1; i >= 0; i--)
+        {
+            builder.add(players.get(i), ROLES[i % ROLES.length]);
+        }
+        RoleTable table = builder.build();
+        assertEquals(players.size(), table.size());
+        for (int i = 0; i < players.size(); i++)
+        {
+            assertEquals(Collections.singletonList(ROLES[i % ROLES.length]), table.get(players.get(i)));
+        }
+        assertEquals(Collections.emptyList(), table.get(new UUID(0, 0)));
+    }
+
+    @Test
+    public void unsortedRowsAreFoundForEveryPlayer()
+    {
+        Random random = new Random(42);
+        Map<UUID, Set<String>> expected = new HashMap<>();
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < 5000; i++)
+        {
+            UUID player = new UUID(random.nextLong(), random.nextLong());
+            Set<String> roles = new HashSet<>();
+            int cnt = 1 + random.nextInt(3);
+            for (int j = 0; j < cnt; j++)
+            {
+                String role = ROLES[random.nextInt(ROLES.length)];
+                roles.add(role);
+                rows.add(new Object[]{player, role});
+                if (random.nextInt(10) == 0)
+                {
+                    rows.add(new Object[]{player, role}); // duplicate row
+                }
+            }
+            expected.put(player, roles);
+        }
+        Collections.shuffle(rows, random);
+
+        RoleTable.Builder builder = new RoleTable.Builder();
+        for (Object[] row : rows)
+        {
+            builder.add((UUID) row[0], (String) row[1]);
+        }
+        RoleTable table = builder.build();
+
+        int pairs = 0;
+        for (Map.Entry<UUID, Set<String>> entry : expected.entrySet())
+        {
+            List<String> roles = table.get(entry.getKey());
+            assertEquals(entry.getKey().toString(), entry.getValue().size(), roles.size());
+            assertEquals(entry.getKey().toString(), entry.getValue(), new HashSet<>(roles));
+            pairs += roles.size();
+        }
+        assertEquals(expected.size(), table.size());
+        assertEquals(pairs, table.getRows());
+        assertEquals(expected.keySet(), new HashSet<>(table.getPlayers()));
+        for (int i = 0; i < 100; i++)
+        {
+            UUID unknown = new UUID(random.nextLong(), random.nextLong());
+            assertTrue(expected.containsKey(unknown) || table.get(unknown).isEmpty());
+        }
+    }
+
+    private static Set<String> set(String... values)
+    {
+        return new HashSet<>(Arrays.asList(values));
+    }
+}